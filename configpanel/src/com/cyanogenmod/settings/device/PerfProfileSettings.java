@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.preference.ListPreference;
+import android.preference.Preference;
+import android.preference.Preference.OnPreferenceChangeListener;
+import android.preference.PreferenceActivity;
+import android.view.MenuItem;
+
+import java.util.List;
+
+import org.cyanogenmod.internal.util.ScreenType;
+
+import com.cyanogenmod.settings.device.utils.PerfProfile;
+import com.cyanogenmod.settings.device.utils.PerfProfileManager;
+
+public class PerfProfileSettings extends PreferenceActivity
+        implements OnPreferenceChangeListener {
+    private static final String KEY_PERF_PROFILE = "perf_profile";
+    private static final String KEY_PERF_PROFILE_UNAVAILABLE = "perf_profile_unavailable";
+
+    private ListPreference mProfile;
+    private Preference mUnavailable;
+    private LoadProfilesTask mLoadTask;
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        addPreferencesFromResource(R.xml.perf_profile_panel);
+        getActionBar().setDisplayHomeAsUpEnabled(true);
+
+        mProfile = (ListPreference) findPreference(KEY_PERF_PROFILE);
+        mProfile.setOnPreferenceChangeListener(this);
+        mUnavailable = findPreference(KEY_PERF_PROFILE_UNAVAILABLE);
+        getPreferenceScreen().removePreference(mUnavailable);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+
+        // If running on a phone, remove padding around the listview
+        if (!ScreenType.isTablet(this)) {
+            getListView().setPadding(0, 0, 0, 0);
+        }
+
+        mProfile.setEnabled(false);
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadProfilesTask();
+        mLoadTask.execute();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+    }
+
+    private String getEntry(PerfProfile profile) {
+        String description = profile.getDescription();
+        return description != null
+                ? getString(R.string.perf_profile_entry_description,
+                        profile.getIndex(), description)
+                : getString(R.string.perf_profile_entry, profile.getIndex());
+    }
+
+    private class LoadProfilesTask extends AsyncTask<Void, Void, List<PerfProfile>> {
+        private int mSelected;
+        private List<PerfProfile> mUnavailableProfiles;
+
+        @Override
+        protected List<PerfProfile> doInBackground(Void... params) {
+            mSelected = PerfProfileManager.getSelected(PerfProfileSettings.this);
+            mUnavailableProfiles = PerfProfileManager.get().getUnavailableProfiles();
+            return PerfProfileManager.get().getProfiles();
+        }
+
+        @Override
+        protected void onPostExecute(List<PerfProfile> profiles) {
+            CharSequence[] entries = new CharSequence[profiles.size() + 1];
+            CharSequence[] values = new CharSequence[profiles.size() + 1];
+            entries[0] = getString(R.string.perf_profile_default);
+            values[0] = String.valueOf(PerfProfileManager.NO_PROFILE);
+            for (int i = 0; i < profiles.size(); i++) {
+                PerfProfile profile = profiles.get(i);
+                entries[i + 1] = getEntry(profile);
+                values[i + 1] = String.valueOf(profile.getIndex());
+            }
+            mProfile.setEntries(entries);
+            mProfile.setEntryValues(values);
+            mProfile.setValue(String.valueOf(mSelected));
+            mProfile.setEnabled(true);
+
+            getPreferenceScreen().removePreference(mUnavailable);
+            if (!mUnavailableProfiles.isEmpty()) {
+                StringBuilder names = new StringBuilder();
+                for (PerfProfile profile : mUnavailableProfiles) {
+                    if (names.length() > 0) {
+                        names.append(", ");
+                    }
+                    names.append(getEntry(profile));
+                }
+                mUnavailable.setSummary(getString(R.string.perf_profile_unavailable_summary,
+                        names));
+                getPreferenceScreen().addPreference(mUnavailable);
+            }
+            mLoadTask = null;
+        }
+    }
+
+    @Override
+    public boolean onPreferenceChange(Preference preference, Object newValue) {
+        if (!KEY_PERF_PROFILE.equals(preference.getKey())) {
+            return false;
+        }
+        final String value = (String) newValue;
+        final int index = Integer.parseInt(value);
+        PerfProfileManager.setSelected(this, index);
+        mProfile.setValue(value);
+
+        final PerfProfileManager manager = PerfProfileManager.get();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                manager.apply(getApplicationContext(), manager.getProfile(index));
+            }
+        });
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == android.R.id.home) {
+            finish();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+}
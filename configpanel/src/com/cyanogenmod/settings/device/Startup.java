@@ -21,29 +21,101 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+import android.util.Log;
 
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import com.cyanogenmod.settings.device.utils.Constants;
 import com.cyanogenmod.settings.device.utils.Constants.GestureCategory;
+import com.cyanogenmod.settings.device.utils.Constants.GestureSysfs;
+import com.cyanogenmod.settings.device.utils.GestureConfigSnapshot;
+import com.cyanogenmod.settings.device.utils.PerfProfile;
+import com.cyanogenmod.settings.device.utils.PerfProfileManager;
 
 public class Startup extends BroadcastReceiver {
+    private static final String TAG = Startup.class.getSimpleName();
+
     @Override
     public void onReceive(final Context context, final Intent intent) {
         if (intent.getAction().equals(Intent.ACTION_BOOT_COMPLETED)) {
-            boolean gesturesEnabled = Constants.hasTouchscreenGestures();
-            enableComponent(context,
-                TouchscreenGestureSettings.class.getName(), gesturesEnabled);
-            if (gesturesEnabled) {
-                // Restore gestures to saved preference values
-                for (Map.Entry<String, GestureCategory> entry
-                        : Constants.sGestureMap.entrySet()) {
-                    boolean enabled = Constants.isPreferenceEnabled(context,
-                            entry.getKey(), entry.getValue().defaultValue);
-                    TouchscreenGestureSettings.setCategoryEnable(entry.getValue(), enabled);
+            final PendingResult result = goAsync();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        restoreGestures(context);
+                        restorePerfProfile(context);
+                    } finally {
+                        result.finish();
+                    }
                 }
+            });
+        }
+    }
+
+    private void restoreGestures(Context context) {
+        final long start = SystemClock.elapsedRealtime();
+        boolean gesturesEnabled = Constants.hasTouchscreenGestures();
+        enableComponent(context,
+            TouchscreenGestureSettings.class.getName(), gesturesEnabled);
+        if (!gesturesEnabled) {
+            return;
+        }
+
+        // The snapshot saves loading the preferences, which are only
+        // needed if it is missing or damaged
+        int mask = GestureConfigSnapshot.read(context);
+        if (mask == GestureConfigSnapshot.INVALID) {
+            mask = GestureConfigSnapshot.fromPreferences(context);
+            GestureConfigSnapshot.write(context, mask);
+        }
+
+        // Restore gestures to saved preference values, only touching the
+        // categories where the controller disagrees with the preference
+        GestureSysfs.Batch batch = new GestureSysfs.Batch();
+        int changed = 0;
+        for (int i = 0; i < Constants.sGestureCategories.length; i++) {
+            GestureCategory category = Constants.sGestureCategories[i];
+            boolean enabled = GestureConfigSnapshot.isEnabled(mask, i);
+            if (!category.isInState(enabled)) {
+                batch.add(category, enabled);
+                changed++;
             }
         }
+        try {
+            batch.commit().get();
+        } catch (InterruptedException | ExecutionException e) {
+            Log.e(TAG, "Failed to restore gestures", e);
+        }
+
+        Log.i(TAG, "Restored " + changed + " gesture categories in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    private void restorePerfProfile(Context context) {
+        PerfProfileManager manager = PerfProfileManager.get();
+        enableComponent(context, PerfProfileSettings.class.getName(),
+                !manager.getProfiles().isEmpty());
+
+        // Every node still holds its boot value
+        PerfProfileManager.resetOriginals(context);
+        int selected = PerfProfileManager.getSelected(context);
+        if (selected == PerfProfileManager.NO_PROFILE) {
+            return;
+        }
+        PerfProfile profile = manager.getProfile(selected);
+        if (profile == null) {
+            Log.w(TAG, "Selected performance profile " + selected + " is gone");
+            return;
+        }
+        if (profile.needsPerfd()) {
+            Log.w(TAG, "Selected performance profile " + selected + " needs perfd");
+            PerfProfileManager.setSelected(context, PerfProfileManager.NO_PROFILE);
+            return;
+        }
+        manager.apply(context, profile);
     }
 
     private void enableComponent(Context context, String component, boolean enabled) {
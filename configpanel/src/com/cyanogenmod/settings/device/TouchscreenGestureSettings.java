@@ -16,16 +16,21 @@
 
 package com.cyanogenmod.settings.device;
 
+import android.content.ComponentName;
+import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.Preference.OnPreferenceChangeListener;
 import android.preference.PreferenceActivity;
+import android.preference.PreferenceCategory;
 import android.preference.SwitchPreference;
+import android.provider.Settings;
 import android.util.Log;
 import android.view.MenuItem;
 
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ExecutionException;
 
 import cyanogenmod.providers.CMSettings;
 
@@ -34,21 +39,35 @@ import org.cyanogenmod.internal.util.ScreenType;
 import com.cyanogenmod.settings.device.utils.Constants;
 import com.cyanogenmod.settings.device.utils.Constants.GestureCategory;
 import com.cyanogenmod.settings.device.utils.Constants.GestureSysfs;
+import com.cyanogenmod.settings.device.utils.GestureConfigSnapshot;
 
 public class TouchscreenGestureSettings extends PreferenceActivity
         implements OnPreferenceChangeListener {
+    private static final String TAG = TouchscreenGestureSettings.class.getSimpleName();
+
+    private static final String KEY_GESTURE_ACTIONS = "gesture_actions";
     private static final String KEY_HAPTIC_FEEDBACK = "touchscreen_gesture_haptic_feedback";
+    private static final String KEY_PERFORMANCE = "performance";
 
     private SwitchPreference mHapticFeedback;
+    private LoadStateTask mLoadTask;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         addPreferencesFromResource(R.xml.touchscreen_panel);
+        addActionPreferences();
         getActionBar().setDisplayHomeAsUpEnabled(true);
 
         mHapticFeedback = (SwitchPreference) findPreference(KEY_HAPTIC_FEEDBACK);
         mHapticFeedback.setOnPreferenceChangeListener(this);
+
+        // Startup disables the profile picker when there are no profiles
+        int perfProfileState = getPackageManager().getComponentEnabledSetting(
+                new ComponentName(this, PerfProfileSettings.class));
+        if (perfProfileState == PackageManager.COMPONENT_ENABLED_STATE_DISABLED) {
+            getPreferenceScreen().removePreference(findPreference(KEY_PERFORMANCE));
+        }
     }
 
     @Override
@@ -60,8 +79,162 @@ public class TouchscreenGestureSettings extends PreferenceActivity
             getListView().setPadding(0, 0, 0, 0);
         }
 
-        mHapticFeedback.setChecked(CMSettings.System.getInt(getContentResolver(),
-                CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0);
+        // Keep the stored values disabled until the current state is known
+        setStatePreferencesEnabled(false);
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+        }
+        mLoadTask = new LoadStateTask();
+        mLoadTask.execute();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (mLoadTask != null) {
+            mLoadTask.cancel(false);
+            mLoadTask = null;
+        }
+    }
+
+    // One action picker per gesture reported as a key event
+    private void addActionPreferences() {
+        PreferenceCategory actions = (PreferenceCategory) findPreference(KEY_GESTURE_ACTIONS);
+        for (int gesture : GestureRegistry.KEY_GESTURES) {
+            ListPreference action = new ListPreference(this);
+            action.setKey(GestureRegistry.ACTION_KEYS[gesture]);
+            action.setPersistent(false);
+            action.setTitle(getGestureTitle(gesture));
+            action.setDialogTitle(action.getTitle());
+            action.setSummary("%s");
+            action.setEntries(R.array.touchscreen_gesture_action_entries);
+            action.setEntryValues(R.array.touchscreen_gesture_action_values);
+            action.setOnPreferenceChangeListener(this);
+            actions.addPreference(action);
+        }
+    }
+
+    // Gestures without a title string are shown by their gestures.conf name
+    private CharSequence getGestureTitle(int gesture) {
+        String name = GestureRegistry.GESTURE_NAMES[gesture];
+        int id = getResources().getIdentifier("touchscreen_gesture_" + name + "_title",
+                "string", getPackageName());
+        return id != 0 ? getText(id) : name;
+    }
+
+    // Lists what each gesture of a category currently does
+    private void updateCategorySummaries() {
+        for (int i = 0; i < GestureRegistry.CATEGORY_COUNT; i++) {
+            Preference category = findPreference(GestureRegistry.CATEGORY_KEYS[i]);
+            if (category == null) {
+                continue;
+            }
+            StringBuilder summary = new StringBuilder();
+            for (int gesture : GestureRegistry.CATEGORY_GESTURES[i]) {
+                String key = GestureRegistry.ACTION_KEYS[gesture];
+                ListPreference action = key != null ? (ListPreference) findPreference(key) : null;
+                if (action == null || action.getEntry() == null) {
+                    continue;
+                }
+                if (summary.length() > 0) {
+                    summary.append('\n');
+                }
+                summary.append(getString(R.string.touchscreen_gesture_mapping,
+                        action.getTitle(), action.getEntry()));
+            }
+            category.setSummary(summary);
+        }
+    }
+
+    private void setStatePreferencesEnabled(boolean enabled) {
+        mHapticFeedback.setEnabled(enabled);
+        for (GestureCategory category : Constants.sGestureCategories) {
+            Preference preference = findPreference(category.key);
+            if (preference != null) {
+                preference.setEnabled(enabled);
+            }
+        }
+        for (int gesture : GestureRegistry.KEY_GESTURES) {
+            Preference action = findPreference(GestureRegistry.ACTION_KEYS[gesture]);
+            if (action != null) {
+                action.setEnabled(enabled);
+            }
+        }
+    }
+
+    /**
+     * Preference state read from the controller snapshot and the settings
+     * providers in one go.
+     */
+    private static class State {
+        final boolean[] categories = new boolean[GestureRegistry.CATEGORY_COUNT];
+        final int[] actions = new int[GestureRegistry.GESTURE_COUNT];
+        boolean hapticFeedback;
+        boolean repaired;
+    }
+
+    private class LoadStateTask extends AsyncTask<Void, Void, State> {
+        @Override
+        protected State doInBackground(Void... params) {
+            State state = new State();
+            state.hapticFeedback = CMSettings.System.getInt(getContentResolver(),
+                    CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
+            for (int gesture : GestureRegistry.KEY_GESTURES) {
+                state.actions[gesture] = Settings.System.getInt(getContentResolver(),
+                        GestureRegistry.ACTION_KEYS[gesture],
+                        GestureRegistry.DEFAULT_ACTIONS[gesture]);
+            }
+
+            // Ensure the gestures of each category match. If one doesn't,
+            // disable them all, repairing every such category at once.
+            GestureSysfs.Batch repair = new GestureSysfs.Batch();
+            for (int i = 0; i < Constants.sGestureCategories.length; i++) {
+                GestureCategory category = Constants.sGestureCategories[i];
+                boolean enabled = category.isInState(true);
+                if (!enabled && !category.isInState(false)) {
+                    repair.add(category, false);
+                    state.repaired = true;
+                }
+                state.categories[i] = enabled;
+            }
+            if (state.repaired) {
+                try {
+                    repair.commit().get();
+                } catch (InterruptedException | ExecutionException e) {
+                    Log.e(TAG, "Failed to repair gesture categories", e);
+                }
+            }
+            return state;
+        }
+
+        @Override
+        protected void onPostExecute(State state) {
+            mHapticFeedback.setChecked(state.hapticFeedback);
+            boolean changed = state.repaired;
+            for (int i = 0; i < state.categories.length; i++) {
+                SwitchPreference category = (SwitchPreference) findPreference(
+                        GestureRegistry.CATEGORY_KEYS[i]);
+                if (category != null) {
+                    changed |= category.isChecked() != state.categories[i];
+                    category.setChecked(state.categories[i]);
+                }
+            }
+            // The preferences now follow the controller, keep the boot
+            // snapshot in line with them
+            if (changed) {
+                saveSnapshot(null, false);
+            }
+            for (int gesture : GestureRegistry.KEY_GESTURES) {
+                ListPreference action = (ListPreference) findPreference(
+                        GestureRegistry.ACTION_KEYS[gesture]);
+                if (action != null) {
+                    action.setValue(String.valueOf(state.actions[gesture]));
+                }
+            }
+            updateCategorySummaries();
+            setStatePreferencesEnabled(true);
+            mLoadTask = null;
+        }
     }
 
     @Override
@@ -74,10 +247,19 @@ public class TouchscreenGestureSettings extends PreferenceActivity
             return true;
         }
 
-        GestureCategory category = Constants.sGestureMap.get(key);
+        if (Constants.findActionGesture(key) != GestureRegistry.NONE) {
+            final String value = (String) newValue;
+            Settings.System.putInt(getContentResolver(), key, Integer.parseInt(value));
+            ((ListPreference) preference).setValue(value);
+            updateCategorySummaries();
+            return true;
+        }
+
+        GestureCategory category = Constants.findCategory(key);
         if (category != null) {
             Boolean value = (Boolean) newValue;
             setCategoryEnable(category, value);
+            saveSnapshot(category, value);
             return true;
         }
         return false;
@@ -86,32 +268,11 @@ public class TouchscreenGestureSettings extends PreferenceActivity
     @Override
     public void addPreferencesFromResource(int preferencesResId) {
         super.addPreferencesFromResource(preferencesResId);
-        // Initialize node preferences
-        for (Map.Entry<String, GestureCategory> entry : Constants.sGestureMap.entrySet()) {
-            SwitchPreference b = (SwitchPreference) findPreference(entry.getKey());
-            if (b == null) continue;
-            b.setOnPreferenceChangeListener(this);
-            GestureCategory category = entry.getValue();
-            List<GestureSysfs> gestures = category.gestures;
-            boolean[] isEnabled = new boolean[gestures.size()];
-
-            // Get the state of each gesture within the category
-            for (int i = 0; i < gestures.size(); i++) {
-                GestureSysfs gesture = gestures.get(i);
-                isEnabled[i] = gesture.isEnabled();
+        for (GestureCategory category : Constants.sGestureCategories) {
+            Preference preference = findPreference(category.key);
+            if (preference != null) {
+                preference.setOnPreferenceChangeListener(this);
             }
-
-            //Ensure they all match.  If one doesn't, disable all.
-            boolean first = isEnabled[0];
-            for(int i = 1; i < isEnabled.length; i++) {
-                if (isEnabled[i] != first) {
-                    setCategoryEnable(category, false);
-                    b.setChecked(false);
-                    return;
-                }
-            }
-
-            b.setChecked(first);
         }
     }
 
@@ -124,9 +285,30 @@ public class TouchscreenGestureSettings extends PreferenceActivity
         return super.onOptionsItemSelected(item);
     }
 
-    public static void setCategoryEnable(GestureCategory category, boolean enable) {
-        for (GestureSysfs sysfs : category.gestures) {
-            sysfs.setEnabled(enable);
+    // The preference itself is only persisted after this returns, so the
+    // changed category, if any, is passed along with its new value
+    private void saveSnapshot(GestureCategory changed, boolean enable) {
+        int mask = 0;
+        for (int i = 0; i < Constants.sGestureCategories.length; i++) {
+            GestureCategory category = Constants.sGestureCategories[i];
+            SwitchPreference preference = (SwitchPreference) findPreference(category.key);
+            boolean enabled = category == changed ? enable
+                    : preference != null ? preference.isChecked() : category.defaultValue;
+            if (enabled) {
+                mask |= 1 << i;
+            }
         }
+
+        final int snapshot = mask;
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                GestureConfigSnapshot.write(getApplicationContext(), snapshot);
+            }
+        });
+    }
+
+    public static void setCategoryEnable(GestureCategory category, boolean enable) {
+        new GestureSysfs.Batch().add(category, enable).commit();
     }
 }
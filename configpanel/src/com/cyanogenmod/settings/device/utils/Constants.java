@@ -16,26 +16,43 @@
 
 package com.cyanogenmod.settings.device.utils;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Future;
 
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
+import com.cyanogenmod.settings.device.GestureRegistry;
+
 public class Constants {
 
     public static class GestureCategory {
-        public List<GestureSysfs> gestures;
-        public boolean defaultValue;
+        public final String key;
+        public final GestureSysfs[] gestures;
+        public final boolean defaultValue;
+
+        GestureCategory(int category) {
+            key = GestureRegistry.CATEGORY_KEYS[category];
+            defaultValue = GestureRegistry.CATEGORY_DEFAULTS[category];
+            int[] members = GestureRegistry.CATEGORY_GESTURES[category];
+            gestures = new GestureSysfs[members.length];
+            for (int i = 0; i < members.length; i++) {
+                gestures[i] = sGestures[members[i]];
+            }
+        }
 
-        public GestureCategory(List<GestureSysfs> gestures, boolean defaultValue) {
-            this.gestures = gestures;
-            this.defaultValue = defaultValue;
+        /**
+         * @return true if every gesture of this category is in the given state
+         */
+        public boolean isInState(boolean enabled) {
+            for (GestureSysfs gesture : gestures) {
+                if (gesture.isEnabled() != enabled) {
+                    return false;
+                }
+            }
+            return true;
         }
     }
 
@@ -44,106 +61,106 @@ public class Constants {
                 "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/gesture_list";
         private static final String TOUCHSCREEN_GESTURE_EN_NODE =
                 "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/en_gesture";
+        // Shared with the power HAL, see power/power-feature.c
+        private static final String TOUCHSCREEN_GESTURE_LOCK_FILE =
+                "/data/system/touchscreen_gesture.lock";
 
-        private static final int ON_BITMASK = 0x01;
-        private static final int OFF_BITMASK = 0x02;
-        private static final String ENABLE_REGEX = " " + "([a-f0-9A-F]{2})";
-
-        private String sysfsKey;
-
-        public GestureSysfs(String sysfsKey) {
-            this.sysfsKey = sysfsKey;
-        }
-
-        private String getEnableString(boolean enable) {
-            return sysfsKey + " " + (enable ? ON_BITMASK : OFF_BITMASK) + ";";
-        }
+        private final int gesture;
+        private final String sysfsKey;
 
-        private String getEnableRegex() {
-            return sysfsKey + ENABLE_REGEX;
+        GestureSysfs(int gesture) {
+            this.gesture = gesture;
+            this.sysfsKey = GestureRegistry.SYSFS_KEYS[gesture];
         }
 
         public boolean isEnabled() {
-            String currentValue = FileUtils.readOneLine(TOUCHSCREEN_GESTURE_LIST_NODE);
-            if (currentValue == null)
-                return false;
-
-            Pattern keyValuePattern = Pattern.compile(getEnableRegex());
-            Matcher keyValueMatcher = keyValuePattern.matcher(currentValue);
-            if (keyValueMatcher.find()) {
-                int value = OFF_BITMASK;
-                try {
-                    value = Integer.parseInt(keyValueMatcher.group(1), 16);
-                } catch (NumberFormatException e) {
-                    //Ignore
-                }
-                return (value & ON_BITMASK) == ON_BITMASK;
-            }
-            return false;
+            return getState().isEnabled(gesture);
         }
 
         public void setEnabled(boolean enable) {
-            if (enable) {
-                enableGestures();
-            }
-            // Writing is implemented in the driver as read/modify/write
-            FileUtils.writeLine(TOUCHSCREEN_GESTURE_LIST_NODE,
-                    getEnableString(enable));
-            if (!enable) {
-                disableGesturesIfAllOff();
-            }
+            new Batch().add(this, enable).commit();
         }
 
-        private static void enableGestures() {
-            FileUtils.writeLine(TOUCHSCREEN_GESTURE_EN_NODE, "1");
-        }
+        /**
+         * Collects gesture changes so they reach the controller as a single
+         * gesture_list transaction, with en_gesture written at most once.
+         */
+        public static class Batch {
+            private final Map<String, Boolean> mChanges = new LinkedHashMap<String, Boolean>();
 
-        private static void disableGesturesIfAllOff() {
-            String currentVal = FileUtils.readOneLine(TOUCHSCREEN_GESTURE_LIST_NODE);
-            if (currentVal == null) {
-                return;
+            public Batch add(GestureSysfs gesture, boolean enable) {
+                mChanges.put(gesture.sysfsKey, enable);
+                return this;
             }
-            Pattern p = Pattern.compile(ENABLE_REGEX);
-            Matcher matcher = p.matcher(currentVal);
-            while (matcher.find()) {
-                int value = OFF_BITMASK;
-                try {
-                    value = Integer.parseInt(matcher.group(1), 16);
-                } catch (NumberFormatException e) {
-                    //Ignore
-                }
-                if ((value & OFF_BITMASK) != OFF_BITMASK) {
-                    return;
+
+            public Batch add(GestureCategory category, boolean enable) {
+                for (GestureSysfs gesture : category.gestures) {
+                    add(gesture, enable);
                 }
+                return this;
+            }
+
+            /**
+             * Queues the changes on the gesture coordinator.
+             *
+             * @return a future completing once the changes reached the controller
+             */
+            public Future<Void> commit() {
+                return GestureCoordinator.get(TOUCHSCREEN_GESTURE_LIST_NODE,
+                        TOUCHSCREEN_GESTURE_EN_NODE, TOUCHSCREEN_GESTURE_LOCK_FILE)
+                        .submit(mChanges);
             }
-            FileUtils.writeLine(TOUCHSCREEN_GESTURE_EN_NODE, "0");
+        }
+
+        static GestureState getState() {
+            return GestureState.get(TOUCHSCREEN_GESTURE_LIST_NODE);
         }
 
         static boolean hasTouchscreenGestures() {
-            return FileUtils.readOneLine(TOUCHSCREEN_GESTURE_LIST_NODE) != null;
+            return getState().isAvailable();
         }
     }
 
-    // Preference keys
-    private static final String TOUCHSCREEN_CAMERA_GESTURE_KEY = "touchscreen_gesture_camera";
-    private static final String TOUCHSCREEN_MUSIC_GESTURE_KEY = "touchscreen_gesture_music";
-    private static final String TOUCHSCREEN_FLASHLIGHT_GESTURE_KEY =
-            "touchscreen_gesture_flashlight";
+    // Every gesture in gesture_list, indexed by GestureRegistry.GESTURE_*
+    public static final GestureSysfs[] sGestures =
+            new GestureSysfs[GestureRegistry.GESTURE_COUNT];
 
-    // Holds <preference_key> -> <proc_node> mapping
-    public static final Map<String, GestureCategory> sGestureMap =
-            new HashMap<String, GestureCategory>();
+    // Preference backed categories, indexed by GestureRegistry.CATEGORY_*
+    public static final GestureCategory[] sGestureCategories =
+            new GestureCategory[GestureRegistry.CATEGORY_COUNT];
 
     static {
-        sGestureMap.put(TOUCHSCREEN_CAMERA_GESTURE_KEY,
-            new GestureCategory(Arrays.asList(new GestureSysfs("o")), false));
-        sGestureMap.put(TOUCHSCREEN_MUSIC_GESTURE_KEY,
-            new GestureCategory(Arrays.asList(
-                new GestureSysfs("LEFT"),
-                new GestureSysfs("DOWN"),
-                new GestureSysfs("RIGHT")), false));
-        sGestureMap.put(TOUCHSCREEN_FLASHLIGHT_GESTURE_KEY,
-            new GestureCategory(Arrays.asList(new GestureSysfs("v")), false));
+        for (int i = 0; i < sGestures.length; i++) {
+            sGestures[i] = new GestureSysfs(i);
+        }
+        for (int i = 0; i < sGestureCategories.length; i++) {
+            sGestureCategories[i] = new GestureCategory(i);
+        }
+    }
+
+    /**
+     * @return the category stored under the given preference key, or null
+     */
+    public static GestureCategory findCategory(String key) {
+        for (GestureCategory category : sGestureCategories) {
+            if (category.key.equals(key)) {
+                return category;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the gesture whose action is stored under the given
+     *         Settings.System key, or GestureRegistry.NONE
+     */
+    public static int findActionGesture(String key) {
+        for (int gesture : GestureRegistry.KEY_GESTURES) {
+            if (GestureRegistry.ACTION_KEYS[gesture].equals(key)) {
+                return gesture;
+            }
+        }
+        return GestureRegistry.NONE;
     }
 
     public static boolean isPreferenceEnabled(Context context, String key, boolean defaultValue) {
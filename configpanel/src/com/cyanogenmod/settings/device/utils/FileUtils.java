@@ -16,15 +16,7 @@
 
 package com.cyanogenmod.settings.device.utils;
 
-import android.util.Log;
-
-import java.io.BufferedReader;
-import java.io.FileOutputStream;
-import java.io.FileReader;
-import java.io.IOException;
-
 public final class FileUtils {
-    private static final String TAG = "FileUtils";
 
     private FileUtils() {
         // this class is not supposed to be instantiated
@@ -34,25 +26,16 @@ public final class FileUtils {
      * Reads the first line of text from the given file
      */
     public static String readOneLine(String fileName) {
-        String line = null;
-        BufferedReader reader = null;
-
-        try {
-            reader = new BufferedReader(new FileReader(fileName), 512);
-            line = reader.readLine();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not read from file " + fileName, e);
-        } finally {
-            try {
-                if (reader != null) {
-                    reader.close();
-                }
-            } catch (IOException e) {
-                // ignored, not much we can do anyway
-            }
-        }
+        return SysfsNode.get(fileName).readLine();
+    }
 
-        return line;
+    /**
+     * Reads up to buffer.length bytes from the given file
+     *
+     * @return the number of bytes read, or -1 on failure
+     */
+    public static int readBytes(String fileName, byte[] buffer) {
+        return SysfsNode.get(fileName).read(buffer);
     }
 
     /**
@@ -60,17 +43,7 @@ public final class FileUtils {
      *
      * @return true on success, false on failure
      */
-    public static boolean writeLine(String fileName, String value) {
-        try {
-            FileOutputStream fos = new FileOutputStream(fileName);
-            fos.write(value.getBytes());
-            fos.flush();
-            fos.close();
-        } catch (IOException e) {
-            Log.e(TAG, "Could not write to file " + fileName, e);
-            return false;
-        }
-
-        return true;
+    public static boolean writeLine(String fileName, CharSequence value) {
+        return SysfsNode.get(fileName).write(value);
     }
 }
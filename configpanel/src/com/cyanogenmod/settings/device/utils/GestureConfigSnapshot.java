@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.cyanogenmod.settings.device.GestureRegistry;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Binary copy of the gesture category preferences, so they can be restored
+ * at boot without loading the whole SharedPreferences file.
+ *
+ * The file holds SIZE big endian bytes: magic, format version, category
+ * count, a bitmask of the enabled categories indexed by
+ * GestureRegistry.CATEGORY_* and the CRC32 of the preceding fields. It is
+ * replaced atomically through AtomicFile.
+ */
+public final class GestureConfigSnapshot {
+    private static final String TAG = "GestureConfigSnapshot";
+
+    private static final String FILE_NAME = "gesture_config.bin";
+    private static final int MAGIC = 0x47434647; // "GCFG"
+    private static final int VERSION = 1;
+    private static final int SIZE = 20;
+
+    public static final int INVALID = -1;
+
+    private GestureConfigSnapshot() {}
+
+    /**
+     * @return the stored category bitmask, or INVALID if the snapshot is
+     *         missing, corrupt or was written for a different registry
+     */
+    public static int read(Context context) {
+        byte[] data;
+        try {
+            data = getFile(context).readFully();
+        } catch (FileNotFoundException e) {
+            return INVALID;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read gesture snapshot", e);
+            return INVALID;
+        }
+
+        if (data.length != SIZE) {
+            return INVALID;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int magic = buffer.getInt();
+        int version = buffer.getInt();
+        int count = buffer.getInt();
+        int mask = buffer.getInt();
+        int crc = buffer.getInt();
+        if (magic != MAGIC || version != VERSION
+                || count != GestureRegistry.CATEGORY_COUNT || crc != checksum(data)) {
+            Log.w(TAG, "Ignoring invalid gesture snapshot");
+            return INVALID;
+        }
+        return mask;
+    }
+
+    public static boolean write(Context context, int mask) {
+        ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(GestureRegistry.CATEGORY_COUNT);
+        buffer.putInt(mask);
+        buffer.putInt(checksum(buffer.array()));
+
+        AtomicFile file = getFile(context);
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            fos.write(buffer.array());
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write gesture snapshot", e);
+            file.failWrite(fos);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the category bitmask built from the SharedPreferences
+     */
+    public static int fromPreferences(Context context) {
+        int mask = 0;
+        for (int i = 0; i < Constants.sGestureCategories.length; i++) {
+            Constants.GestureCategory category = Constants.sGestureCategories[i];
+            if (Constants.isPreferenceEnabled(context, category.key, category.defaultValue)) {
+                mask |= 1 << i;
+            }
+        }
+        return mask;
+    }
+
+    public static boolean isEnabled(int mask, int category) {
+        return (mask & (1 << category)) != 0;
+    }
+
+    private static int checksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, SIZE - 4);
+        return (int) crc.getValue();
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+}
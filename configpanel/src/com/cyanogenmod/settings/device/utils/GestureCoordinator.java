@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Single writer for the touchscreen gesture nodes.
+ *
+ * Every change goes through one queue. Changes queued while a transaction
+ * is running are coalesced into the next one, later values winning. A
+ * transaction holds a write lock on a lock file in /data/system for its
+ * whole read/modify/write. The power HAL takes the same lock for double
+ * tap to wake, so neither side can clobber the other's en_gesture decision.
+ * A separate file is used since closing any descriptor of a locked file
+ * drops the process' POSIX locks, and the nodes are opened and closed
+ * during the transaction. init creates the lock file with its own label,
+ * see init.qcom.rc.
+ */
+public final class GestureCoordinator {
+    private static final String TAG = "GestureCoordinator";
+
+    private static final int ON_BITMASK = 0x01;
+    private static final int OFF_BITMASK = 0x02;
+
+    private static GestureCoordinator sInstance;
+
+    private final String mListNode;
+    private final String mEnableNode;
+    private final String mLockFile;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Object mLock = new Object();
+    private Map<String, Boolean> mPending = new LinkedHashMap<String, Boolean>();
+    private FutureTask<Void> mPendingTransaction;
+
+    private final Runnable mTransactionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Map<String, Boolean> changes;
+            synchronized (mLock) {
+                changes = mPending;
+                mPending = new LinkedHashMap<String, Boolean>();
+                mPendingTransaction = null;
+            }
+            apply(changes);
+        }
+    };
+
+    private GestureCoordinator(String listNode, String enableNode, String lockFile) {
+        mListNode = listNode;
+        mEnableNode = enableNode;
+        mLockFile = lockFile;
+    }
+
+    public static synchronized GestureCoordinator get(String listNode, String enableNode,
+            String lockFile) {
+        if (sInstance == null) {
+            sInstance = new GestureCoordinator(listNode, enableNode, lockFile);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queues the given <sysfs key> -> <enabled> changes.
+     *
+     * @return a future completing once the changes reached the controller
+     */
+    public Future<Void> submit(Map<String, Boolean> changes) {
+        synchronized (mLock) {
+            mPending.putAll(changes);
+            if (mPendingTransaction == null) {
+                mPendingTransaction = new FutureTask<Void>(mTransactionRunnable, null);
+                mExecutor.execute(mPendingTransaction);
+            }
+            return mPendingTransaction;
+        }
+    }
+
+    private void apply(Map<String, Boolean> changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        StringBuilder payload = new StringBuilder();
+        boolean anyEnabled = false;
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            boolean enable = change.getValue();
+            payload.append(change.getKey()).append(' ')
+                    .append(enable ? ON_BITMASK : OFF_BITMASK).append(';');
+            anyEnabled |= enable;
+        }
+
+        GestureState state = GestureState.get(mListNode);
+        RandomAccessFile lockFile = null;
+        FileLock lock = null;
+        try {
+            lockFile = new RandomAccessFile(SysfsNode.resolve(mLockFile), "rw");
+            lock = lockFile.getChannel().lock();
+        } catch (IOException e) {
+            // Still apply the change, just without excluding other writers
+            Log.w(TAG, "Could not lock " + mLockFile, e);
+        }
+
+        try {
+            // Decide en_gesture once, from the state read under the lock
+            state.invalidate();
+            boolean allOff = !anyEnabled && state.isAllOffExcept(changes.keySet());
+
+            if (anyEnabled) {
+                FileUtils.writeLine(mEnableNode, "1");
+            }
+            // Writing is implemented in the driver as read/modify/write
+            FileUtils.writeLine(mListNode, payload);
+            state.invalidate();
+            if (allOff) {
+                FileUtils.writeLine(mEnableNode, "0");
+            }
+        } finally {
+            try {
+                if (lock != null) {
+                    lock.release();
+                }
+                if (lockFile != null) {
+                    lockFile.close();
+                }
+            } catch (IOException e) {
+                // ignored, not much we can do anyway
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import com.cyanogenmod.settings.device.GestureRegistry;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Allocation free parser for the touchscreen gesture_list node.
+ *
+ * The node reports one "NAME STATE;" entry per gesture, STATE being a hex
+ * bitmask, e.g.
+ *   TAP 0a;UNLOCK0 0a;UNLOCK1 0a;LEFT 0a;RIGHT 0a;UP 0a;DOWN 0a;S_115_116 0a;o 0a;v 0a;
+ * Values are stored in an int array indexed by gesture ordinal, see
+ * GestureRegistry.SYSFS_KEYS. Malformed entries are skipped up to the
+ * next ';'. The end of the input also ends an entry, unless the input
+ * filled the whole buffer and the entry may have been cut off.
+ */
+public final class GestureListScanner {
+
+    public static final int NOT_REPORTED = -1;
+
+    private static final byte[][] KEY_BYTES = new byte[GestureRegistry.GESTURE_COUNT][];
+
+    static {
+        for (int i = 0; i < KEY_BYTES.length; i++) {
+            KEY_BYTES[i] = GestureRegistry.SYSFS_KEYS[i].getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    private final int[] mValues = new int[GestureRegistry.GESTURE_COUNT];
+    private int mUnknownCommonBits;
+
+    /**
+     * Parses the first len bytes of buf, replacing the previous result.
+     *
+     * @return the number of well formed entries found
+     */
+    public int scan(byte[] buf, int len) {
+        Arrays.fill(mValues, NOT_REPORTED);
+        mUnknownCommonBits = NOT_REPORTED;
+        boolean truncated = len == buf.length;
+
+        int entries = 0;
+        int pos = 0;
+        while (pos < len) {
+            // Skip separators left over from the previous entry
+            while (pos < len && isSpace(buf[pos])) {
+                pos++;
+            }
+            if (pos >= len) {
+                break;
+            }
+
+            int nameStart = pos;
+            while (pos < len && !isSpace(buf[pos]) && buf[pos] != ';') {
+                pos++;
+            }
+            int nameEnd = pos;
+            while (pos < len && buf[pos] == ' ') {
+                pos++;
+            }
+
+            int value = 0;
+            int digits = 0;
+            int digit;
+            while (pos < len && (digit = hexDigit(buf[pos])) >= 0) {
+                value = (value << 4) | digit;
+                digits++;
+                pos++;
+            }
+
+            // Whitespace may follow the value, e.g. the newline ending the node
+            while (pos < len && isSpace(buf[pos])) {
+                pos++;
+            }
+            boolean terminated = pos < len ? buf[pos] == ';' : !truncated;
+
+            if (nameEnd > nameStart && digits > 0 && digits <= 8 && terminated) {
+                int index = match(buf, nameStart, nameEnd - nameStart);
+                if (index >= 0) {
+                    mValues[index] = value;
+                } else {
+                    mUnknownCommonBits &= value;
+                }
+                entries++;
+                pos++;
+            } else {
+                // Malformed entry, resynchronize on the next separator
+                while (pos < len && buf[pos] != ';') {
+                    pos++;
+                }
+                pos++;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * @return the bitmask reported for the given gesture, or NOT_REPORTED
+     */
+    public int getValue(int gesture) {
+        return mValues[gesture];
+    }
+
+    /**
+     * @return the bits set in every entry not in the registry, or
+     *         NOT_REPORTED if there was no such entry
+     */
+    public int getUnknownCommonBits() {
+        return mUnknownCommonBits;
+    }
+
+    private static int match(byte[] buf, int start, int len) {
+        for (int i = 0; i < KEY_BYTES.length; i++) {
+            byte[] key = KEY_BYTES[i];
+            if (key.length != len) {
+                continue;
+            }
+            int j = 0;
+            while (j < len && key[j] == buf[start + j]) {
+                j++;
+            }
+            if (j == len) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t' || b == 0;
+    }
+
+    private static int hexDigit(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+}
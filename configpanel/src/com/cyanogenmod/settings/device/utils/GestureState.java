@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.os.FileObserver;
+
+import com.cyanogenmod.settings.device.GestureRegistry;
+
+import java.util.Collection;
+
+/**
+ * Cached snapshot of the touchscreen gesture_list node.
+ *
+ * The node is read at most once until the snapshot is invalidated, either
+ * by one of our own writes or by the FileObserver watching the node.
+ */
+public final class GestureState {
+
+    private static final int ON_BITMASK = 0x01;
+    private static final int OFF_BITMASK = 0x02;
+
+    // NODE_MAX in power/power-feature.c, with some headroom
+    private static final int NODE_MAX = 256;
+
+    private static GestureState sInstance;
+
+    private final String mNode;
+    private final byte[] mBuffer = new byte[NODE_MAX];
+    private final GestureListScanner mScanner = new GestureListScanner();
+    private FileObserver mObserver;
+    private boolean mValid;
+    private boolean mAvailable;
+
+    private GestureState(String node) {
+        mNode = node;
+    }
+
+    public static synchronized GestureState get(String node) {
+        if (sInstance == null) {
+            sInstance = new GestureState(node);
+        }
+        return sInstance;
+    }
+
+    public synchronized void invalidate() {
+        mValid = false;
+    }
+
+    public synchronized boolean isAvailable() {
+        ensureValid();
+        return mAvailable;
+    }
+
+    public synchronized boolean isEnabled(int gesture) {
+        ensureValid();
+        return isOn(mScanner.getValue(gesture));
+    }
+
+    /**
+     * @return true if every reported gesture other than the given keys
+     *         carries the off bit
+     */
+    public synchronized boolean isAllOffExcept(Collection<String> keys) {
+        ensureValid();
+        if (!mAvailable || !isOff(mScanner.getUnknownCommonBits())) {
+            return false;
+        }
+        for (int i = 0; i < GestureRegistry.GESTURE_COUNT; i++) {
+            if (!keys.contains(GestureRegistry.SYSFS_KEYS[i]) && !isOff(mScanner.getValue(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isOn(int value) {
+        return value != GestureListScanner.NOT_REPORTED && (value & ON_BITMASK) == ON_BITMASK;
+    }
+
+    // Keys missing from the node count as off
+    private static boolean isOff(int value) {
+        return value == GestureListScanner.NOT_REPORTED || (value & OFF_BITMASK) == OFF_BITMASK;
+    }
+
+    private void ensureValid() {
+        if (mValid) {
+            return;
+        }
+        startWatching();
+
+        int len = FileUtils.readBytes(mNode, mBuffer);
+        mAvailable = len >= 0;
+        mScanner.scan(mBuffer, mAvailable ? len : 0);
+        mValid = true;
+    }
+
+    private void startWatching() {
+        if (mObserver != null) {
+            return;
+        }
+        mObserver = new FileObserver(SysfsNode.get(mNode).getFile().getPath(),
+                FileObserver.MODIFY | FileObserver.CLOSE_WRITE) {
+            @Override
+            public void onEvent(int event, String path) {
+                invalidate();
+            }
+        };
+        mObserver.startWatching();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One perfd performance profile, as found in perf-profile<N>.conf.
+ *
+ * A profile consists of up to three sections:
+ *   [locks]     perflock opcodes, one per line
+ *   [files]     "<value> <path>" lines, the value may contain spaces
+ *   [priority]  a single number, the section comment describes the profile
+ * Anything after a '#' is a comment. Malformed lines are logged and skipped.
+ */
+public final class PerfProfile {
+    private static final String TAG = "PerfProfile";
+
+    public static final int NO_PRIORITY = -1;
+
+    private static final int SECTION_NONE = 0;
+    private static final int SECTION_LOCKS = 1;
+    private static final int SECTION_FILES = 2;
+    private static final int SECTION_PRIORITY = 3;
+
+    private final int mIndex;
+    private final int mPriority;
+    private final String mDescription;
+    private final int[] mLocks;
+    private final String[] mPaths;
+    private final String[] mValues;
+
+    private PerfProfile(int index, int priority, String description, int[] locks,
+            String[] paths, String[] values) {
+        mIndex = index;
+        mPriority = priority;
+        mDescription = description;
+        mLocks = locks;
+        mPaths = paths;
+        mValues = values;
+    }
+
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    /**
+     * @return the comment of the [priority] section, or null
+     */
+    public String getDescription() {
+        return mDescription;
+    }
+
+    /**
+     * @return the perflock opcodes, applied by perfd only
+     */
+    public int[] getLocks() {
+        return mLocks;
+    }
+
+    /**
+     * @return true if the profile has perflocks, writing its files alone
+     *         would only apply part of it
+     */
+    public boolean needsPerfd() {
+        return mLocks.length > 0;
+    }
+
+    public int getFileCount() {
+        return mPaths.length;
+    }
+
+    public String getPath(int i) {
+        return mPaths[i];
+    }
+
+    public String getValue(int i) {
+        return mValues[i];
+    }
+
+    public static PerfProfile parse(int index, BufferedReader reader) throws IOException {
+        int section = SECTION_NONE;
+        int priority = NO_PRIORITY;
+        String description = null;
+        List<Integer> locks = new ArrayList<Integer>();
+        List<String> paths = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+
+        String line;
+        int lineno = 0;
+        while ((line = reader.readLine()) != null) {
+            lineno++;
+            String comment = null;
+            int hash = line.indexOf('#');
+            if (hash >= 0) {
+                comment = line.substring(hash + 1).trim();
+                line = line.substring(0, hash);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            if (line.startsWith("[") && line.endsWith("]")) {
+                String name = line.substring(1, line.length() - 1);
+                if ("locks".equals(name)) {
+                    section = SECTION_LOCKS;
+                } else if ("files".equals(name)) {
+                    section = SECTION_FILES;
+                } else if ("priority".equals(name)) {
+                    section = SECTION_PRIORITY;
+                    if (comment != null && !comment.isEmpty()) {
+                        description = comment;
+                    }
+                } else {
+                    Log.w(TAG, "profile " + index + ":" + lineno + ": unknown section " + name);
+                    section = SECTION_NONE;
+                }
+                continue;
+            }
+
+            try {
+                switch (section) {
+                case SECTION_LOCKS:
+                    locks.add(Integer.decode(line));
+                    break;
+                case SECTION_FILES:
+                    int split = line.lastIndexOf(' ');
+                    int tab = line.lastIndexOf('\t');
+                    split = Math.max(split, tab);
+                    if (split < 0 || line.charAt(split + 1) != '/') {
+                        throw new IllegalArgumentException("expected <value> <path>");
+                    }
+                    values.add(line.substring(0, split).trim());
+                    paths.add(line.substring(split + 1));
+                    break;
+                case SECTION_PRIORITY:
+                    priority = Integer.parseInt(line);
+                    break;
+                default:
+                    throw new IllegalArgumentException("entry outside of a section");
+                }
+            } catch (IllegalArgumentException e) {
+                // NumberFormatException is an IllegalArgumentException
+                Log.w(TAG, "profile " + index + ":" + lineno + ": ignoring '" + line
+                        + "': " + e.getMessage());
+            }
+        }
+
+        int[] lockArray = new int[locks.size()];
+        for (int i = 0; i < lockArray.length; i++) {
+            lockArray[i] = locks.get(i);
+        }
+        return new PerfProfile(index, priority, description, lockArray,
+                paths.toArray(new String[paths.size()]),
+                values.toArray(new String[values.size()]));
+    }
+}
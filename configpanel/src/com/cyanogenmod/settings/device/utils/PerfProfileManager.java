@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads the perfd profiles and applies their [files] section.
+ *
+ * Perflocks can only be taken through perfd, which ConfigPanel has no
+ * client for. Profiles with a [locks] section are therefore not offered,
+ * see getUnavailableProfiles(), and never applied.
+ *
+ * Parsed profiles are cached until the file changes. Applying a profile
+ * first reads every node it or the previously applied profile touches,
+ * then writes only the nodes whose value differs. Nodes the previous
+ * profile changed but the new one doesn't mention are put back to the
+ * value they had before any profile was applied. Those original values
+ * are kept in a private preferences file until the next boot.
+ *
+ * perfd writes some of the same nodes while it holds perflocks and puts
+ * its own defaults back when they are released, and the cpu4 nodes are
+ * recreated with their defaults on hotplug. The values written last are
+ * remembered as well. A node found no longer holding them is left alone
+ * until the next boot, writing it again wouldn't stick either.
+ */
+public final class PerfProfileManager {
+    private static final String TAG = "PerfProfileManager";
+
+    private static final String PROFILE_PATH = "/system/vendor/etc/perf-profile%d.conf";
+    private static final int MAX_PROFILES = 16;
+    // Reserved for perflock requests, see perf-profile0.conf
+    private static final int RESERVED_PROFILE = 0;
+
+    public static final int NO_PROFILE = -1;
+
+    private static final String PREFS_NAME = "perf_profile";
+    private static final String KEY_SELECTED = "selected";
+    private static final String ORIGINALS_NAME = "perf_profile_originals";
+    private static final String APPLIED_NAME = "perf_profile_applied";
+    private static final String EXTERNAL_NAME = "perf_profile_external";
+
+    private static PerfProfileManager sInstance;
+
+    private final SparseArray<CachedProfile> mCache = new SparseArray<CachedProfile>();
+
+    private static class CachedProfile {
+        final long lastModified;
+        final long length;
+        final PerfProfile profile;
+
+        CachedProfile(long lastModified, long length, PerfProfile profile) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.profile = profile;
+        }
+    }
+
+    private PerfProfileManager() {
+    }
+
+    public static synchronized PerfProfileManager get() {
+        if (sInstance == null) {
+            sInstance = new PerfProfileManager();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return every selectable profile, by index
+     */
+    public List<PerfProfile> getProfiles() {
+        return getProfiles(false);
+    }
+
+    /**
+     * @return every profile that needs perfd, by index
+     */
+    public List<PerfProfile> getUnavailableProfiles() {
+        return getProfiles(true);
+    }
+
+    private List<PerfProfile> getProfiles(boolean needsPerfd) {
+        List<PerfProfile> profiles = new ArrayList<PerfProfile>();
+        for (int i = RESERVED_PROFILE + 1; i < MAX_PROFILES; i++) {
+            PerfProfile profile = getProfile(i);
+            if (profile != null && profile.needsPerfd() == needsPerfd) {
+                profiles.add(profile);
+            }
+        }
+        return profiles;
+    }
+
+    /**
+     * @return the given profile, or null if it doesn't exist or can't be read
+     */
+    public synchronized PerfProfile getProfile(int index) {
+        File file = SysfsNode.resolve(String.format(PROFILE_PATH, index));
+        long lastModified = file.lastModified();
+        long length = file.length();
+        if (lastModified == 0) {
+            mCache.remove(index);
+            return null;
+        }
+
+        CachedProfile cached = mCache.get(index);
+        if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+            return cached.profile;
+        }
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            PerfProfile profile = PerfProfile.parse(index, reader);
+            if (profile.needsPerfd()) {
+                Log.w(TAG, "Profile " + index + " has perflocks, only perfd can apply it");
+            }
+            mCache.put(index, new CachedProfile(lastModified, length, profile));
+            return profile;
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read " + file, e);
+            mCache.remove(index);
+            return null;
+        } finally {
+            try {
+                if (reader != null) {
+                    reader.close();
+                }
+            } catch (IOException e) {
+                // ignored, not much we can do anyway
+            }
+        }
+    }
+
+    public static int getSelected(Context context) {
+        return getPrefs(context).getInt(KEY_SELECTED, NO_PROFILE);
+    }
+
+    public static void setSelected(Context context, int index) {
+        getPrefs(context).edit().putInt(KEY_SELECTED, index).apply();
+    }
+
+    /**
+     * Forgets the values recorded before the first profile was applied,
+     * along with the values written since and the nodes left alone.
+     * Only to be called while the nodes still hold their boot values.
+     */
+    public static void resetOriginals(Context context) {
+        context.getSharedPreferences(ORIGINALS_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        context.getSharedPreferences(APPLIED_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+        context.getSharedPreferences(EXTERNAL_NAME, Context.MODE_PRIVATE)
+                .edit().clear().commit();
+    }
+
+    /**
+     * Applies the given profile, or restores the original values if null.
+     * Profiles that need perfd restore the original values as well.
+     *
+     * @return the number of nodes written
+     */
+    public synchronized int apply(Context context, PerfProfile profile) {
+        if (profile != null && profile.needsPerfd()) {
+            Log.w(TAG, "Not applying profile " + profile.getIndex() + ", it has perflocks");
+            profile = null;
+        }
+        SharedPreferences originals =
+                context.getSharedPreferences(ORIGINALS_NAME, Context.MODE_PRIVATE);
+        SharedPreferences applied =
+                context.getSharedPreferences(APPLIED_NAME, Context.MODE_PRIVATE);
+        SharedPreferences external =
+                context.getSharedPreferences(EXTERNAL_NAME, Context.MODE_PRIVATE);
+
+        // Desired state: the originals of everything touched so far,
+        // overridden by the new profile
+        Map<String, String> target = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, ?> entry : originals.getAll().entrySet()) {
+            target.put(entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        if (profile != null) {
+            for (int i = 0; i < profile.getFileCount(); i++) {
+                target.put(profile.getPath(i), profile.getValue(i));
+            }
+        }
+
+        // Read everything first, so the writes go out back to back
+        SharedPreferences.Editor newOriginals = originals.edit();
+        SharedPreferences.Editor newApplied = applied.edit().clear();
+        SharedPreferences.Editor newExternal = external.edit();
+        List<String> paths = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        int changed = 0;
+        for (Map.Entry<String, String> entry : target.entrySet()) {
+            String path = entry.getKey();
+            if (external.contains(path)) {
+                changed++;
+                continue;
+            }
+            String current = SysfsNode.get(path).readLine();
+            if (current == null) {
+                continue;
+            }
+            current = normalize(current);
+            if (!originals.contains(path)) {
+                newOriginals.putString(path, current);
+            }
+            String last = applied.getString(path, null);
+            if (last != null && !last.equals(current)) {
+                Log.w(TAG, path + " changed from '" + last + "' to '" + current
+                        + "' since the last apply, leaving it alone");
+                newExternal.putString(path, current);
+                changed++;
+                continue;
+            }
+            String value = normalize(entry.getValue());
+            if (!value.equals(current)) {
+                paths.add(path);
+                values.add(value);
+            } else {
+                newApplied.putString(path, value);
+            }
+        }
+        newOriginals.commit();
+        newExternal.commit();
+
+        int written = 0;
+        for (int i = 0; i < paths.size(); i++) {
+            if (SysfsNode.get(paths.get(i)).write(values.get(i))) {
+                newApplied.putString(paths.get(i), values.get(i));
+                written++;
+            }
+        }
+        newApplied.commit();
+        Log.i(TAG, "Applied profile " + (profile != null ? profile.getIndex() : NO_PROFILE)
+                + ", wrote " + written + " of " + target.size() + " nodes, "
+                + changed + " managed externally");
+        return written;
+    }
+
+    // Nodes echo multi value settings with varying whitespace
+    private static String normalize(String value) {
+        return value.trim().replaceAll("\\s+", " ");
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Accessor for a single sysfs style node.
+ *
+ * Reads are positional reads at offset 0 on a cached channel, which makes
+ * sysfs regenerate the attribute, into a reused direct buffer. The read
+ * channel is dropped on any error and reopened on the next read. Writes
+ * open the node each time, as drivers expect one store per open, but
+ * encode straight into the reused buffer.
+ *
+ * All paths are resolved against a root directory, "/" unless changed
+ * with setRoot(), so the nodes can be faked in a temporary directory.
+ * Writes to a faked node can be handed to a Store standing in for the
+ * driver, see setStore().
+ */
+public final class SysfsNode {
+    private static final String TAG = "SysfsNode";
+
+    // Sysfs attributes are at most one page
+    private static final int BUFFER_SIZE = 4096;
+
+    /**
+     * Applies writes to a faked node the way its driver would, e.g. by
+     * merging them into the current content instead of replacing it.
+     */
+    interface Store {
+        void store(File file, CharSequence value) throws IOException;
+    }
+
+    private static final Map<String, SysfsNode> sNodes = new HashMap<String, SysfsNode>();
+    private static final Map<String, Store> sStores = new HashMap<String, Store>();
+    private static File sRoot = new File("/");
+
+    private final File mFile;
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private FileChannel mReadChannel;
+    private Store mStore;
+
+    private SysfsNode(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Resolves every node against the given directory from now on. Stores
+     * set for the previous root are dropped.
+     */
+    public static synchronized void setRoot(String root) {
+        for (SysfsNode node : sNodes.values()) {
+            node.close();
+        }
+        sNodes.clear();
+        sStores.clear();
+        sRoot = new File(root);
+    }
+
+    /**
+     * Hands the writes to the given node to store, or back to the file
+     * system if store is null.
+     */
+    static synchronized void setStore(String path, Store store) {
+        if (store != null) {
+            sStores.put(path, store);
+        } else {
+            sStores.remove(path);
+        }
+        SysfsNode node = sNodes.get(path);
+        if (node != null) {
+            synchronized (node) {
+                node.mStore = store;
+            }
+        }
+    }
+
+    /**
+     * @return the given absolute path resolved against the current root
+     */
+    public static synchronized File resolve(String path) {
+        return new File(sRoot, path);
+    }
+
+    public static synchronized SysfsNode get(String path) {
+        SysfsNode node = sNodes.get(path);
+        if (node == null) {
+            node = new SysfsNode(resolve(path));
+            node.mStore = sStores.get(path);
+            sNodes.put(path, node);
+        }
+        return node;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Reads up to dst.length bytes from the start of the node
+     *
+     * @return the number of bytes read, or -1 on failure
+     */
+    public synchronized int read(byte[] dst) {
+        if (!fill()) {
+            return -1;
+        }
+        int count = Math.min(mBuffer.remaining(), dst.length);
+        mBuffer.get(dst, 0, count);
+        return count;
+    }
+
+    /**
+     * Reads the first line of text from the node
+     */
+    public synchronized String readLine() {
+        if (!fill()) {
+            return null;
+        }
+        int len = mBuffer.remaining();
+        char[] chars = new char[len];
+        int count = 0;
+        while (count < len) {
+            byte b = mBuffer.get();
+            if (b == '\n') {
+                break;
+            }
+            chars[count++] = (char) (b & 0xff);
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Writes the given ASCII value into the node
+     *
+     * @return true on success, false on failure
+     */
+    public synchronized boolean write(CharSequence value) {
+        if (mStore != null) {
+            try {
+                mStore.store(mFile, value);
+            } catch (IOException e) {
+                Log.e(TAG, "Could not write to file " + mFile, e);
+                return false;
+            }
+            return true;
+        }
+
+        mBuffer.clear();
+        int len = Math.min(value.length(), BUFFER_SIZE);
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            mBuffer.put(c < 0x80 ? (byte) c : (byte) '?');
+        }
+        mBuffer.flip();
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile);
+            FileChannel channel = fos.getChannel();
+            while (mBuffer.hasRemaining()) {
+                channel.write(mBuffer);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write to file " + mFile, e);
+            return false;
+        } finally {
+            try {
+                if (fos != null) {
+                    fos.close();
+                }
+            } catch (IOException e) {
+                // ignored, not much we can do anyway
+            }
+        }
+        return true;
+    }
+
+    private boolean fill() {
+        mBuffer.clear();
+        try {
+            if (mReadChannel == null) {
+                mReadChannel = new FileInputStream(mFile).getChannel();
+            }
+            long offset = 0;
+            int count;
+            while (mBuffer.hasRemaining()
+                    && (count = mReadChannel.read(mBuffer, offset)) > 0) {
+                offset += count;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not read from file " + mFile, e);
+            close();
+            return false;
+        }
+        mBuffer.flip();
+        return true;
+    }
+
+    private void close() {
+        if (mReadChannel != null) {
+            try {
+                mReadChannel.close();
+            } catch (IOException e) {
+                // ignored, not much we can do anyway
+            }
+            mReadChannel = null;
+        }
+    }
+}
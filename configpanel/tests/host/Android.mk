@@ -0,0 +1,54 @@
+#
+# Copyright (C) 2016 The CyanogenMod Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+
+# Plain Java tests and benchmarks for the gesture node code of ConfigPanel,
+# built against the host stand-ins for Android classes under shims. Run with:
+#   java -cp $ANDROID_HOST_OUT/framework/junit.jar:$ANDROID_HOST_OUT/framework/ConfigPanelHostTests.jar \
+#       org.junit.runner.JUnitCore com.cyanogenmod.settings.device.utils.GestureListScannerTest
+# The gesture node simulator runs the same way, with GestureSimulatorTest.
+# Time the parse and write paths with:
+#   java -cp $ANDROID_HOST_OUT/framework/junit.jar:$ANDROID_HOST_OUT/framework/ConfigPanelHostTests.jar \
+#       com.cyanogenmod.settings.device.utils.GestureBenchmark [iterations]
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_MODULE := ConfigPanelHostTests
+LOCAL_MODULE_CLASS := JAVA_LIBRARIES
+LOCAL_MODULE_TAGS := tests
+LOCAL_IS_HOST_MODULE := true
+
+configpanel_utils := ../../src/com/cyanogenmod/settings/device/utils
+
+LOCAL_SRC_FILES := \
+    $(call all-java-files-under, src) \
+    $(call all-java-files-under, shims) \
+    ../src/com/cyanogenmod/settings/device/utils/GestureListDriver.java \
+    $(configpanel_utils)/Constants.java \
+    $(configpanel_utils)/FileUtils.java \
+    $(configpanel_utils)/GestureCoordinator.java \
+    $(configpanel_utils)/GestureListScanner.java \
+    $(configpanel_utils)/GestureState.java \
+    $(configpanel_utils)/SysfsNode.java
+
+LOCAL_JAVA_LIBRARIES := junit
+
+include $(LOCAL_PATH)/../../../gestures/registry.mk
+
+include $(BUILD_HOST_JAVA_LIBRARY)
+
+configpanel_utils :=
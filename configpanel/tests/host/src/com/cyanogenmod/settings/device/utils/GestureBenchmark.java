@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import com.cyanogenmod.settings.device.GestureRegistry;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Host timing harness for the gesture_list parse and write paths. Prints
+ * the time and the bytes allocated by the calling thread per operation.
+ *
+ * The nodes are plain files in a temporary directory, see
+ * SysfsNode.setRoot(), so the write paths are timed without the driver.
+ * Batch commits run on the coordinator's thread, so their allocations are
+ * not counted, only the caller's. Allocation counts need a HotSpot based
+ * JVM and are reported as -1 otherwise.
+ */
+public final class GestureBenchmark {
+    // Same nodes as Constants, resolved against the temporary root
+    private static final String LIST_NODE =
+            "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/gesture_list";
+    private static final String EN_NODE =
+            "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/en_gesture";
+    private static final String LOCK_FILE = "/data/system/touchscreen_gesture.lock";
+
+    private static final int DEFAULT_ITERATIONS = 100000;
+    // File backed operations are that much slower, keep their runs short
+    private static final int IO_DIVISOR = 100;
+
+    private interface Operation {
+        void run(int iteration) throws Exception;
+    }
+
+    private GestureBenchmark() {
+        // this class is not supposed to be instantiated
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        File root = new File(System.getProperty("java.io.tmpdir"),
+                "gesture_benchmark_" + System.nanoTime());
+        try {
+            run(root, iterations);
+        } finally {
+            SysfsNode.setRoot("/");
+            delete(root);
+        }
+        // The coordinator's executor thread would keep the JVM alive
+        System.exit(0);
+    }
+
+    private static void run(File root, int iterations) throws Exception {
+        StringBuilder node = new StringBuilder();
+        for (String key : GestureRegistry.SYSFS_KEYS) {
+            node.append(key).append(" 0a;");
+        }
+        node.append('\n');
+        write(new File(root, LIST_NODE), node.toString());
+        write(new File(root, EN_NODE), "1");
+        write(new File(root, LOCK_FILE), "");
+        SysfsNode.setRoot(root.getPath());
+
+        final byte[] text = node.toString().getBytes(StandardCharsets.US_ASCII);
+        final byte[] buf = new byte[256];
+        System.arraycopy(text, 0, buf, 0, text.length);
+        final GestureListScanner scanner = new GestureListScanner();
+        measure("scan gesture_list", iterations, new Operation() {
+            @Override
+            public void run(int iteration) {
+                scanner.scan(buf, text.length);
+            }
+        });
+
+        final GestureState state = Constants.GestureSysfs.getState();
+        measure("read gesture_list", iterations / IO_DIVISOR, new Operation() {
+            @Override
+            public void run(int iteration) {
+                state.invalidate();
+                state.isEnabled(GestureRegistry.GESTURE_TAP);
+            }
+        });
+
+        final Constants.GestureSysfs gesture = Constants.sGestures[GestureRegistry.GESTURE_V];
+        measure("commit gesture", iterations / IO_DIVISOR, new Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                new Constants.GestureSysfs.Batch().add(gesture, (iteration & 1) == 0)
+                        .commit().get();
+            }
+        });
+
+        // The category with the most gestures, i.e. the largest payload
+        Constants.GestureCategory largest = Constants.sGestureCategories[0];
+        for (Constants.GestureCategory category : Constants.sGestureCategories) {
+            if (category.gestures.length > largest.gestures.length) {
+                largest = category;
+            }
+        }
+        final Constants.GestureCategory category = largest;
+        measure("commit category " + category.key, iterations / IO_DIVISOR, new Operation() {
+            @Override
+            public void run(int iteration) throws Exception {
+                new Constants.GestureSysfs.Batch().add(category, (iteration & 1) == 0)
+                        .commit().get();
+            }
+        });
+    }
+
+    // Runs a tenth of the iterations to warm up, then times the rest
+    private static void measure(String name, int iterations, Operation operation)
+            throws Exception {
+        iterations = Math.max(iterations, 1);
+        for (int i = 0; i < iterations / 10; i++) {
+            operation.run(i);
+        }
+
+        long bytes = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            operation.run(i);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = bytes < 0 ? -1 : (allocatedBytes() - bytes) / iterations;
+
+        System.out.println(String.format("%-44s %10d ns/op %8d B/op (%d ops)",
+                name, elapsed / iterations, allocated, iterations));
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean)
+                    .getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    private static void write(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import com.cyanogenmod.settings.device.GestureRegistry;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class GestureListScannerTest {
+    private static final int BUFFER_SIZE = 256;
+
+    private GestureListScanner mScanner;
+
+    @Before
+    public void setUp() {
+        mScanner = new GestureListScanner();
+    }
+
+    // Scans the given text from a buffer with room to spare
+    private int scan(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.US_ASCII);
+        byte[] buf = new byte[BUFFER_SIZE];
+        System.arraycopy(bytes, 0, buf, 0, bytes.length);
+        return mScanner.scan(buf, bytes.length);
+    }
+
+    private void assertNotReported(int... gestures) {
+        for (int gesture : gestures) {
+            assertEquals(GestureRegistry.SYSFS_KEYS[gesture],
+                    GestureListScanner.NOT_REPORTED, mScanner.getValue(gesture));
+        }
+    }
+
+    @Test
+    public void fullNode() {
+        StringBuilder node = new StringBuilder();
+        for (int i = 0; i < GestureRegistry.GESTURE_COUNT; i++) {
+            node.append(GestureRegistry.SYSFS_KEYS[i]).append(' ')
+                    .append(Integer.toHexString(i + 1)).append(';');
+        }
+        assertEquals(GestureRegistry.GESTURE_COUNT, scan(node.toString()));
+        for (int i = 0; i < GestureRegistry.GESTURE_COUNT; i++) {
+            assertEquals(i + 1, mScanner.getValue(i));
+        }
+        assertEquals(GestureListScanner.NOT_REPORTED, mScanner.getUnknownCommonBits());
+    }
+
+    @Test
+    public void emptyInput() {
+        assertEquals(0, scan(""));
+        assertEquals(0, mScanner.scan(new byte[0], 0));
+        assertNotReported(GestureRegistry.GESTURE_TAP, GestureRegistry.GESTURE_V);
+        assertEquals(GestureListScanner.NOT_REPORTED, mScanner.getUnknownCommonBits());
+    }
+
+    @Test
+    public void missingTrailingSeparator() {
+        assertEquals(2, scan("TAP 0a;v 01"));
+        assertEquals(0x0a, mScanner.getValue(GestureRegistry.GESTURE_TAP));
+        assertEquals(0x01, mScanner.getValue(GestureRegistry.GESTURE_V));
+
+        assertEquals(1, scan("o 02\n"));
+        assertEquals(0x02, mScanner.getValue(GestureRegistry.GESTURE_CIRCLE));
+    }
+
+    @Test
+    public void unknownNames() {
+        assertEquals(3, scan("FOO 0a;TAP 01;BAR 0e;"));
+        assertEquals(0x01, mScanner.getValue(GestureRegistry.GESTURE_TAP));
+        assertEquals(0x0a & 0x0e, mScanner.getUnknownCommonBits());
+
+        // Names are case sensitive, "O" is not the circle gesture
+        assertEquals(1, scan("O 01;"));
+        assertNotReported(GestureRegistry.GESTURE_CIRCLE);
+        assertEquals(0x01, mScanner.getUnknownCommonBits());
+    }
+
+    @Test
+    public void whitespace() {
+        assertEquals(3, scan("  TAP   0A ;\nLEFT 0b;\t v 0c;\n"));
+        assertEquals(0x0a, mScanner.getValue(GestureRegistry.GESTURE_TAP));
+        assertEquals(0x0b, mScanner.getValue(GestureRegistry.GESTURE_SWIPE_LEFT));
+        assertEquals(0x0c, mScanner.getValue(GestureRegistry.GESTURE_V));
+
+        assertEquals(0, scan(" \n\t "));
+    }
+
+    @Test
+    public void malformedEntriesAreSkipped() {
+        assertEquals(2, scan("TAP;LEFT zz;RIGHT 0a;UP 123456789;DOWN 01;"));
+        assertEquals(0x0a, mScanner.getValue(GestureRegistry.GESTURE_SWIPE_RIGHT));
+        assertEquals(0x01, mScanner.getValue(GestureRegistry.GESTURE_SWIPE_DOWN));
+        assertNotReported(GestureRegistry.GESTURE_TAP, GestureRegistry.GESTURE_SWIPE_LEFT,
+                GestureRegistry.GESTURE_SWIPE_UP);
+    }
+
+    @Test
+    public void truncatedBuffer() {
+        byte[] text = "TAP 0a;LEFT 0b;RIGHT 0c;".getBytes(StandardCharsets.US_ASCII);
+
+        // Cut off in the middle of a value, the partial entry is dropped
+        byte[] buf = new byte[text.length - 2];
+        System.arraycopy(text, 0, buf, 0, buf.length);
+        assertEquals(2, mScanner.scan(buf, buf.length));
+        assertEquals(0x0a, mScanner.getValue(GestureRegistry.GESTURE_TAP));
+        assertEquals(0x0b, mScanner.getValue(GestureRegistry.GESTURE_SWIPE_LEFT));
+        assertNotReported(GestureRegistry.GESTURE_SWIPE_RIGHT);
+
+        // Cut off in the middle of a name
+        buf = new byte[10];
+        System.arraycopy(text, 0, buf, 0, buf.length);
+        assertEquals(1, mScanner.scan(buf, buf.length));
+        assertNotReported(GestureRegistry.GESTURE_SWIPE_LEFT);
+    }
+
+    @Test
+    public void rescanReplacesPreviousResult() {
+        scan("TAP 0a;FOO 01;");
+        assertEquals(1, scan("v 02;"));
+        assertNotReported(GestureRegistry.GESTURE_TAP);
+        assertEquals(0x02, mScanner.getValue(GestureRegistry.GESTURE_V));
+        assertEquals(GestureListScanner.NOT_REPORTED, mScanner.getUnknownCommonBits());
+    }
+}
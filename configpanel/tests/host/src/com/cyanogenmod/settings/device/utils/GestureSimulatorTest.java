@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import com.cyanogenmod.settings.device.GestureRegistry;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs GestureSysfs, GestureCoordinator and GestureState against modelled
+ * nodes: a gesture_list modifying entries in place like the driver, see
+ * GestureListDriver, and a power HAL toggling double tap to wake or
+ * holding the lock from another process, see PowerHalModel and LockHolder.
+ *
+ * The classes under test are singletons, so scenarios run one at a time.
+ * Run separate JVMs to run them in parallel.
+ */
+public class GestureSimulatorTest {
+    private static final String LIST_NODE = PowerHalModel.LIST_NODE;
+    private static final String EN_NODE = PowerHalModel.EN_NODE;
+    private static final String LOCK_FILE = PowerHalModel.LOCK_FILE;
+
+    // Initial state of every gesture, off plus a bit the driver keeps
+    private static final int INITIAL_STATE = 0x0a;
+
+    // Even, so the power HAL ends with double tap to wake off
+    private static final int POWER_HAL_ROUNDS = 2000;
+    private static final int TIMEOUT_SECONDS = 60;
+    // How long a blocked change gets to wrongly go through
+    private static final long BLOCKED_MILLIS = 500;
+
+    private File mRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        mRoot = new File(System.getProperty("java.io.tmpdir"),
+                "gesture_simulator_" + System.nanoTime());
+        StringBuilder node = new StringBuilder();
+        for (String key : GestureRegistry.SYSFS_KEYS) {
+            node.append(key).append(' ').append(String.format("%02x", INITIAL_STATE))
+                    .append(';');
+        }
+        write(LIST_NODE, node.toString());
+        write(EN_NODE, "0");
+        write(LOCK_FILE, "");
+
+        SysfsNode.setRoot(mRoot.getPath());
+        SysfsNode.setStore(LIST_NODE, new GestureListDriver());
+        Constants.GestureSysfs.getState().invalidate();
+    }
+
+    @After
+    public void tearDown() {
+        SysfsNode.setRoot("/");
+        Constants.GestureSysfs.getState().invalidate();
+        delete(mRoot);
+    }
+
+    @Test
+    public void categoryChangesKeepOtherGestures() throws Exception {
+        Constants.GestureCategory category = Constants.sGestureCategories[0];
+        new Constants.GestureSysfs.Batch().add(category, true).commit()
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(category.isInState(true));
+        assertEquals("1", read(EN_NODE));
+
+        Map<String, Integer> states = readStates();
+        assertEquals(GestureRegistry.GESTURE_COUNT, states.size());
+        for (Constants.GestureSysfs gesture : Constants.sGestures) {
+            if (!isMember(category, gesture)) {
+                assertFalse(gesture.isEnabled());
+            }
+        }
+        assertEquals(Integer.valueOf(INITIAL_STATE),
+                states.get(GestureRegistry.SYSFS_KEYS[GestureRegistry.GESTURE_TAP]));
+
+        new Constants.GestureSysfs.Batch().add(category, false).commit()
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(category.isInState(false));
+        assertEquals("0", read(EN_NODE));
+        // The driver only flips the on and off bits
+        for (int state : readStates().values()) {
+            assertEquals(INITIAL_STATE, state);
+        }
+    }
+
+    @Test
+    public void doubleTapToWakeKeepsGesturesEnabled() throws Exception {
+        Constants.GestureSysfs v = Constants.sGestures[GestureRegistry.GESTURE_V];
+        assertTrue(PowerHalModel.setDoubleTapToWake(mRoot, true));
+        assertEquals("1", read(EN_NODE));
+
+        v.setEnabled(true);
+        flush();
+        v.setEnabled(false);
+        flush();
+        assertFalse(v.isEnabled());
+        assertEquals("still on for double tap to wake", "1", read(EN_NODE));
+
+        assertTrue(PowerHalModel.setDoubleTapToWake(mRoot, false));
+        assertEquals("0", read(EN_NODE));
+
+        v.setEnabled(true);
+        flush();
+        assertTrue(PowerHalModel.setDoubleTapToWake(mRoot, false));
+        assertEquals("still on for the settings", "1", read(EN_NODE));
+    }
+
+    @Test
+    public void coordinatorWaitsForTheLock() throws Exception {
+        Process holder = start(LockHolder.class, new File(mRoot, LOCK_FILE).getPath());
+        Future<Void> applied;
+        try {
+            BufferedReader output = new BufferedReader(new InputStreamReader(
+                    holder.getInputStream(), StandardCharsets.US_ASCII));
+            assertEquals("locked", output.readLine());
+
+            String before = read(LIST_NODE);
+            Constants.GestureSysfs v = Constants.sGestures[GestureRegistry.GESTURE_V];
+            applied = new Constants.GestureSysfs.Batch().add(v, true).commit();
+            Thread.sleep(BLOCKED_MILLIS);
+            assertFalse("applied while the lock was held", applied.isDone());
+            assertEquals(before, read(LIST_NODE));
+            assertEquals("0", read(EN_NODE));
+
+            OutputStream input = holder.getOutputStream();
+            input.write('\n');
+            input.flush();
+            assertEquals(0, holder.waitFor());
+        } finally {
+            holder.destroy();
+        }
+        applied.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        Integer state = readStates().get(GestureRegistry.SYSFS_KEYS[GestureRegistry.GESTURE_V]);
+        assertNotNull(state);
+        assertEquals(GestureListDriver.ON_BITMASK, state & GestureListDriver.ON_BITMASK);
+        assertEquals("1", read(EN_NODE));
+    }
+
+    @Test
+    public void settingsRaceThePowerHal() throws Exception {
+        final Process powerHal = start(PowerHalModel.class, mRoot.getPath(),
+                String.valueOf(POWER_HAL_ROUNDS));
+        BufferedReader output = new BufferedReader(new InputStreamReader(
+                powerHal.getInputStream(), StandardCharsets.US_ASCII));
+        assertEquals("ready", output.readLine());
+
+        // One writer per gesture the settings control, double tap to wake
+        // belongs to the power HAL
+        List<Constants.GestureSysfs> gestures = new ArrayList<Constants.GestureSysfs>();
+        for (int i = 0; i < Constants.sGestures.length; i++) {
+            if (i != GestureRegistry.GESTURE_TAP) {
+                gestures.add(Constants.sGestures[i]);
+            }
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(gestures.size() + 1);
+        final AtomicBoolean done = new AtomicBoolean();
+        try {
+            Future<Integer> status = pool.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    try {
+                        return powerHal.waitFor();
+                    } finally {
+                        done.set(true);
+                    }
+                }
+            });
+
+            // Keep writing while the power HAL runs, ending with every
+            // gesture on
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final Constants.GestureSysfs gesture : gestures) {
+                results.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int round = 0; round % 2 == 0 || !done.get(); round++) {
+                            Future<Void> applied = new Constants.GestureSysfs.Batch()
+                                    .add(gesture, round % 2 == 0).commit();
+                            // Mix waiting and fire-and-forget submitters
+                            if (round % 8 == 0) {
+                                applied.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            assertEquals("power HAL found inconsistent nodes", Integer.valueOf(0),
+                    status.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+            for (Future<Void> result : results) {
+                result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+        } finally {
+            pool.shutdownNow();
+            powerHal.destroy();
+        }
+        flush();
+        // Its writes bypass the state cache, as they do on the device
+        Constants.GestureSysfs.getState().invalidate();
+
+        for (Constants.GestureSysfs gesture : gestures) {
+            assertTrue(gesture.isEnabled());
+        }
+        assertFalse(Constants.sGestures[GestureRegistry.GESTURE_TAP].isEnabled());
+        assertEquals("1", read(EN_NODE));
+        assertTrue(PowerHalModel.isConsistent(new File(mRoot, LIST_NODE),
+                new File(mRoot, EN_NODE)));
+    }
+
+    // Runs the main() of the given class in a child JVM
+    private static Process start(Class<?> main, String... args) throws IOException {
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(main.getName());
+        for (String arg : args) {
+            command.add(arg);
+        }
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    // Waits for everything queued on the coordinator so far
+    private static void flush() throws Exception {
+        new Constants.GestureSysfs.Batch().commit().get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private static boolean isMember(Constants.GestureCategory category,
+            Constants.GestureSysfs gesture) {
+        for (Constants.GestureSysfs member : category.gestures) {
+            if (member == gesture) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Map<String, Integer> readStates() throws IOException {
+        return GestureListDriver.parse(read(LIST_NODE));
+    }
+
+    private String read(String path) throws IOException {
+        return GestureListDriver.read(new File(mRoot, path));
+    }
+
+    private void write(String path, String content) throws IOException {
+        File file = new File(mRoot, path);
+        file.getParentFile().mkdirs();
+        GestureListDriver.write(file, content);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+
+/**
+ * Holds the lock on a file from a separate process, the way the power HAL
+ * does while it writes the gesture nodes. Prints "locked" once it holds
+ * the lock and releases it when its input ends or has a line:
+ *   java -cp ... com.cyanogenmod.settings.device.utils.LockHolder <file>
+ *
+ * Locks are held per process, a second FileChannel locking the file in
+ * the process of the coordinator would fail instead of waiting.
+ */
+public final class LockHolder {
+    private LockHolder() {
+        // this class is not supposed to be instantiated
+    }
+
+    public static void main(String[] args) throws IOException {
+        RandomAccessFile lockFile = new RandomAccessFile(args[0], "rw");
+        try {
+            FileLock lock = lockFile.getChannel().lock();
+            System.out.println("locked");
+            System.out.flush();
+            System.in.read();
+            lock.release();
+        } finally {
+            lockFile.close();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Map;
+
+/**
+ * Stand-in for the double tap to wake path of power/power-feature.c, run
+ * as a separate process so its lock excludes the coordinator like the
+ * power HAL's fcntl lock does. Toggles double tap to wake the given
+ * number of times, starting with on, once it printed "ready":
+ *   java -cp ... com.cyanogenmod.settings.device.utils.PowerHalModel <root> <rounds>
+ *
+ * Every writer leaves en_gesture set if and only if a gesture is on, so
+ * each time it holds the lock the model checks that it finds the nodes
+ * that way. It exits with status 1 if they weren't.
+ */
+public final class PowerHalModel {
+    static final String LIST_NODE = "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/gesture_list";
+    static final String EN_NODE = "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/en_gesture";
+    static final String LOCK_FILE = "/data/system/touchscreen_gesture.lock";
+
+    private PowerHalModel() {
+        // this class is not supposed to be instantiated
+    }
+
+    public static void main(String[] args) throws IOException {
+        File root = new File(args[0]);
+        int rounds = Integer.parseInt(args[1]);
+        int inconsistent = 0;
+        System.out.println("ready");
+        System.out.flush();
+        for (int i = 0; i < rounds; i++) {
+            if (!setDoubleTapToWake(root, i % 2 == 0)) {
+                inconsistent++;
+            }
+        }
+        if (inconsistent > 0) {
+            System.err.println("Found inconsistent nodes in " + inconsistent + " of " + rounds
+                    + " rounds");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * set_device_specific_feature(POWER_FEATURE_DOUBLE_TAP_TO_WAKE, state)
+     *
+     * @return false if the nodes were inconsistent once locked
+     */
+    static boolean setDoubleTapToWake(File root, boolean state) throws IOException {
+        File list = new File(root, LIST_NODE);
+        File enable = new File(root, EN_NODE);
+        RandomAccessFile lockFile = new RandomAccessFile(new File(root, LOCK_FILE), "rw");
+        try {
+            FileLock lock = lockFile.getChannel().lock();
+            boolean consistent = isConsistent(list, enable);
+            if (state) {
+                GestureListDriver.write(enable, "1");
+            }
+            GestureListDriver.write(list, GestureListDriver.merge(GestureListDriver.read(list),
+                    "TAP " + (state ? GestureListDriver.ON_BITMASK
+                            : GestureListDriver.OFF_BITMASK) + ";"));
+            if (!state) {
+                disableGesturesIfAllOff(list, enable);
+            }
+            lock.release();
+            return consistent;
+        } finally {
+            // Closing the descriptor releases the lock
+            lockFile.close();
+        }
+    }
+
+    /**
+     * @return true if en_gesture is set exactly when a gesture is on
+     */
+    static boolean isConsistent(File list, File enable) throws IOException {
+        boolean anyOn = false;
+        for (int state : GestureListDriver.parse(GestureListDriver.read(list)).values()) {
+            anyOn |= (state & GestureListDriver.ON_BITMASK) != 0;
+        }
+        return anyOn == "1".equals(GestureListDriver.read(enable).trim());
+    }
+
+    private static void disableGesturesIfAllOff(File list, File enable) throws IOException {
+        Map<String, Integer> states = GestureListDriver.parse(GestureListDriver.read(list));
+        for (int state : states.values()) {
+            if ((state & GestureListDriver.OFF_BITMASK) != GestureListDriver.OFF_BITMASK) {
+                return;
+            }
+        }
+        GestureListDriver.write(enable, "0");
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Temporary directory standing in for "/" while a test runs, see
+ * SysfsNode.setRoot(). Nodes written to through SysfsNode behave like
+ * plain files, unless they are modelled on their driver.
+ */
+class FakeSysfs {
+    private final File mRoot;
+
+    FakeSysfs(File dir) {
+        mRoot = dir;
+        delete(mRoot);
+        mRoot.mkdirs();
+        SysfsNode.setRoot(mRoot.getPath());
+    }
+
+    File getFile(String path) {
+        return new File(mRoot, path);
+    }
+
+    void write(String path, String content) throws IOException {
+        File file = getFile(path);
+        file.getParentFile().mkdirs();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Creates a gesture_list node that merges writes like the driver, see
+     * GestureListDriver.
+     */
+    void writeGestureList(String path, String content) throws IOException {
+        write(path, content);
+        SysfsNode.setStore(path, new GestureListDriver());
+    }
+
+    String read(String path) throws IOException {
+        return GestureListDriver.read(getFile(path));
+    }
+
+    void release() {
+        SysfsNode.setRoot("/");
+        delete(mRoot);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.test.AndroidTestCase;
+
+import com.cyanogenmod.settings.device.GestureRegistry;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Hammers GestureCoordinator from one writer thread per gesture while a
+ * reader watches the nodes, the way the settings UI, the boot restore and
+ * dumpsys can overlap.
+ */
+public class GestureCoordinatorTest extends AndroidTestCase {
+    // Same nodes as Constants, resolved against the fake root
+    private static final String LIST_NODE =
+            "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/gesture_list";
+    private static final String EN_NODE =
+            "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/en_gesture";
+    private static final String LOCK_FILE = "/data/system/touchscreen_gesture.lock";
+
+    private static final int ROUNDS = 200;
+    private static final int TIMEOUT_SECONDS = 30;
+
+    // Initial state of every gesture, off plus a bit the driver keeps
+    private static final int INITIAL_STATE = 0x0a;
+
+    private FakeSysfs mSysfs;
+    private GestureCoordinator mCoordinator;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSysfs = new FakeSysfs(getContext().getFileStreamPath("gesture_coordinator_test"));
+        Map<String, Integer> states = new LinkedHashMap<String, Integer>();
+        for (String key : GestureRegistry.SYSFS_KEYS) {
+            states.put(key, INITIAL_STATE);
+        }
+        mSysfs.writeGestureList(LIST_NODE, GestureListDriver.format(states));
+        mSysfs.write(EN_NODE, "0");
+        mSysfs.write(LOCK_FILE, "");
+        mCoordinator = GestureCoordinator.get(LIST_NODE, EN_NODE, LOCK_FILE);
+        GestureState.get(LIST_NODE).invalidate();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        GestureState.get(LIST_NODE).invalidate();
+        mSysfs.release();
+        super.tearDown();
+    }
+
+    public void testConcurrentWriters() throws Exception {
+        final int writers = GestureRegistry.GESTURE_COUNT;
+        ExecutorService pool = Executors.newFixedThreadPool(writers + 1);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean done = new AtomicBoolean();
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < writers; i++) {
+                final String key = GestureRegistry.SYSFS_KEYS[i];
+                results.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        start.await();
+                        for (int round = 0; round < ROUNDS; round++) {
+                            Future<Void> applied = mCoordinator.submit(
+                                    Collections.singletonMap(key, round % 2 == 0));
+                            // Mix waiting and fire-and-forget submitters
+                            if (round % 8 == 0) {
+                                applied.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            Future<Void> reader = pool.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    start.await();
+                    while (!done.get()) {
+                        assertWellFormed(mSysfs.read(LIST_NODE));
+                        String enabled = mSysfs.read(EN_NODE);
+                        assertTrue("en_gesture '" + enabled + "'", enabled.isEmpty()
+                                || "0".equals(enabled) || "1".equals(enabled));
+                    }
+                    return null;
+                }
+            });
+
+            start.countDown();
+            for (Future<Void> result : results) {
+                result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+            done.set(true);
+            reader.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } finally {
+            done.set(true);
+            pool.shutdownNow();
+        }
+
+        // Everything queued so far runs before a later transaction
+        mCoordinator.submit(Collections.<String, Boolean>emptyMap())
+                .get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        // The last value of every writer was off
+        for (Map.Entry<String, Boolean> entry : parse(mSysfs.read(LIST_NODE)).entrySet()) {
+            assertFalse(entry.getKey(), entry.getValue());
+        }
+
+        // The coordinator still converges on a consistent state
+        mCoordinator.submit(all(true)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        for (Map.Entry<String, Boolean> entry : parse(mSysfs.read(LIST_NODE)).entrySet()) {
+            assertTrue(entry.getKey(), entry.getValue());
+        }
+        assertEquals("1", mSysfs.read(EN_NODE));
+
+        mCoordinator.submit(all(false)).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        // The driver only flips the on and off bits
+        for (int state : GestureListDriver.parse(mSysfs.read(LIST_NODE)).values()) {
+            assertEquals(INITIAL_STATE, state);
+        }
+        assertEquals("0", mSysfs.read(EN_NODE));
+    }
+
+    public void testLaterValuesWin() throws Exception {
+        Map<String, Boolean> on = Collections.singletonMap(GestureRegistry.SYSFS_KEYS[0], true);
+        Map<String, Boolean> off = Collections.singletonMap(GestureRegistry.SYSFS_KEYS[0], false);
+        Future<Void> first = null;
+        Future<Void> last = null;
+        for (int i = 0; i < ROUNDS; i++) {
+            last = mCoordinator.submit(i % 2 == 0 ? on : off);
+            if (first == null) {
+                first = last;
+            }
+        }
+        last.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertTrue(first.isDone());
+        assertEquals(Boolean.FALSE, parse(mSysfs.read(LIST_NODE))
+                .get(GestureRegistry.SYSFS_KEYS[0]));
+    }
+
+    private static Map<String, Boolean> all(boolean enabled) {
+        Map<String, Boolean> changes = new LinkedHashMap<String, Boolean>();
+        for (String key : GestureRegistry.SYSFS_KEYS) {
+            changes.put(key, enabled);
+        }
+        return changes;
+    }
+
+    private static Map<String, Boolean> parse(String list) {
+        Map<String, Boolean> values = new HashMap<String, Boolean>();
+        for (Map.Entry<String, Integer> entry : GestureListDriver.parse(list).entrySet()) {
+            values.put(entry.getKey(),
+                    (entry.getValue() & GestureListDriver.ON_BITMASK) != 0);
+        }
+        return values;
+    }
+
+    // Every gesture, once, as the driver reports them
+    private static void assertWellFormed(String list) {
+        if (list.isEmpty()) {
+            // Caught between the driver model truncating and writing the file
+            return;
+        }
+        Map<String, Integer> states = GestureListDriver.parse(list);
+        assertEquals("malformed '" + list + "'", GestureListDriver.format(states), list);
+        assertEquals("missing keys in '" + list + "'", GestureRegistry.GESTURE_COUNT,
+                states.size());
+        for (String key : GestureRegistry.SYSFS_KEYS) {
+            assertTrue("missing " + key + " in '" + list + "'", states.containsKey(key));
+        }
+    }
+}
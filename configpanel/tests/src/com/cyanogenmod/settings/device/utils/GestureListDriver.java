@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Model of the touchscreen driver's gesture_list attribute on top of a
+ * plain file, see SysfsNode.setStore().
+ *
+ * Like the driver, a write is a list of "NAME STATE;" entries modifying
+ * the named gestures in place. ON_BITMASK sets the on bit and clears the
+ * off bit, OFF_BITMASK does the opposite, other bits of the state are
+ * kept. Unknown names are ignored, so the node keeps reporting every
+ * gesture in its original order, e.g.
+ *   TAP 0a;UNLOCK0 0a;UNLOCK1 0a;LEFT 0a;RIGHT 0a;UP 0a;DOWN 0a;S_115_116 0a;o 0a;v 0a;
+ * Also used by processes standing in for the power HAL, which write the
+ * file directly.
+ */
+class GestureListDriver implements SysfsNode.Store {
+    static final int ON_BITMASK = 0x01;
+    static final int OFF_BITMASK = 0x02;
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final Pattern ENTRY = Pattern.compile("\\s*([^\\s;]+) ([0-9a-fA-F]+);");
+
+    @Override
+    public void store(File file, CharSequence value) throws IOException {
+        // The driver serializes its stores
+        synchronized (GestureListDriver.class) {
+            write(file, merge(read(file), value));
+        }
+    }
+
+    /**
+     * @return the node content after writing value to a node reading node
+     */
+    static String merge(CharSequence node, CharSequence value) {
+        Map<String, Integer> states = parse(node);
+        for (Map.Entry<String, Integer> change : parse(value).entrySet()) {
+            Integer state = states.get(change.getKey());
+            if (state == null) {
+                continue;
+            }
+            int bits = change.getValue();
+            if ((bits & ON_BITMASK) != 0) {
+                state = (state | ON_BITMASK) & ~OFF_BITMASK;
+            } else if ((bits & OFF_BITMASK) != 0) {
+                state = (state | OFF_BITMASK) & ~ON_BITMASK;
+            }
+            states.put(change.getKey(), state);
+        }
+        return format(states);
+    }
+
+    /**
+     * @return the well formed leading "NAME STATE;" entries, in order
+     */
+    static Map<String, Integer> parse(CharSequence node) {
+        Map<String, Integer> states = new LinkedHashMap<String, Integer>();
+        Matcher matcher = ENTRY.matcher(node);
+        while (matcher.lookingAt()) {
+            states.put(matcher.group(1), Integer.parseInt(matcher.group(2), 16));
+            matcher.region(matcher.end(), node.length());
+        }
+        return states;
+    }
+
+    static String format(Map<String, Integer> states) {
+        StringBuilder node = new StringBuilder();
+        for (Map.Entry<String, Integer> state : states.entrySet()) {
+            node.append(state.getKey()).append(' ')
+                    .append(String.format("%02x", state.getValue())).append(';');
+        }
+        return node.toString();
+    }
+
+    static String read(File file) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        byte[] buf = new byte[BUFFER_SIZE];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int count;
+            while ((count = in.read(buf)) > 0) {
+                content.write(buf, 0, count);
+            }
+            return new String(content.toByteArray(), StandardCharsets.US_ASCII);
+        } finally {
+            in.close();
+        }
+    }
+
+    static void write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes(StandardCharsets.US_ASCII));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.SharedPreferences;
+import android.test.AndroidTestCase;
+
+import java.io.IOException;
+import java.util.List;
+
+public class PerfProfileManagerTest extends AndroidTestCase {
+    private static final String PROFILE_PATH = "/system/vendor/etc/perf-profile%d.conf";
+
+    private static final String MIN_CPUS = "/sys/devices/system/cpu/cpu4/core_ctl/min_cpus";
+    private static final String HISPEED_FREQ =
+            "/sys/devices/system/cpu/cpu4/cpufreq/interactive/hispeed_freq";
+    private static final String UPMIGRATE = "/proc/sys/kernel/sched_upmigrate";
+
+    // Every profile written gets a new mtime, so the cache never sees a
+    // rewritten file as unchanged
+    private static long sLastModified = 1000000000000L;
+
+    private FakeSysfs mSysfs;
+    private Context mContext;
+    private PerfProfileManager mManager;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSysfs = new FakeSysfs(getContext().getFileStreamPath("perf_profile_test"));
+        mSysfs.write(MIN_CPUS, "0\n");
+        mSysfs.write(HISPEED_FREQ, "1248000\n");
+        mSysfs.write(UPMIGRATE, "95\n");
+
+        // Keep the test's preferences apart from the real ones
+        mContext = new ContextWrapper(getContext()) {
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                return super.getSharedPreferences("test_" + name, mode);
+            }
+        };
+        PerfProfileManager.resetOriginals(mContext);
+        mManager = PerfProfileManager.get();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PerfProfileManager.resetOriginals(mContext);
+        mSysfs.release();
+        super.tearDown();
+    }
+
+    private void writeProfile(int index, String text) throws IOException {
+        String path = String.format(PROFILE_PATH, index);
+        mSysfs.write(path, text);
+        sLastModified += 1000;
+        mSysfs.getFile(path).setLastModified(sLastModified);
+    }
+
+    private String readNode(String path) throws IOException {
+        return mSysfs.read(path).trim();
+    }
+
+    public void testGetProfiles() throws IOException {
+        writeProfile(0, "[priority]\n0\n");
+        writeProfile(1, "[priority] # Power save\n1\n");
+        writeProfile(4, "[priority]\n4\n");
+
+        List<PerfProfile> profiles = mManager.getProfiles();
+        assertEquals(2, profiles.size());
+        assertEquals(1, profiles.get(0).getIndex());
+        assertEquals("Power save", profiles.get(0).getDescription());
+        assertEquals(4, profiles.get(1).getIndex());
+        assertNull(mManager.getProfile(2));
+    }
+
+    public void testProfilesWithLocksAreUnavailable() throws IOException {
+        writeProfile(1, "[files]\n2 " + MIN_CPUS + "\n");
+        writeProfile(4, "[locks]\n0x2310\n[files]\n1632000 " + HISPEED_FREQ + "\n");
+
+        List<PerfProfile> profiles = mManager.getProfiles();
+        assertEquals(1, profiles.size());
+        assertEquals(1, profiles.get(0).getIndex());
+        List<PerfProfile> unavailable = mManager.getUnavailableProfiles();
+        assertEquals(1, unavailable.size());
+        assertEquals(4, unavailable.get(0).getIndex());
+
+        // Applying it only restores what the previous profile changed
+        mManager.apply(mContext, mManager.getProfile(1));
+        assertEquals(1, mManager.apply(mContext, mManager.getProfile(4)));
+        assertEquals("0", readNode(MIN_CPUS));
+        assertEquals("1248000", readNode(HISPEED_FREQ));
+    }
+
+    public void testCacheFollowsTheFile() throws IOException {
+        writeProfile(1, "[files]\n1 " + MIN_CPUS + "\n");
+        PerfProfile first = mManager.getProfile(1);
+        assertSame(first, mManager.getProfile(1));
+
+        writeProfile(1, "[files]\n2 " + MIN_CPUS + "\n");
+        PerfProfile second = mManager.getProfile(1);
+        assertNotSame(first, second);
+        assertEquals("2", second.getValue(0));
+
+        mSysfs.getFile(String.format(PROFILE_PATH, 1)).delete();
+        assertNull(mManager.getProfile(1));
+    }
+
+    public void testApplyWritesOnlyDifferences() throws IOException {
+        writeProfile(1, "[files]\n"
+                + "2 " + MIN_CPUS + "\n"
+                + "1248000 " + HISPEED_FREQ + "\n"
+                + "90 " + UPMIGRATE + "\n");
+
+        assertEquals(2, mManager.apply(mContext, mManager.getProfile(1)));
+        assertEquals("2", readNode(MIN_CPUS));
+        assertEquals("1248000", readNode(HISPEED_FREQ));
+        assertEquals("90", readNode(UPMIGRATE));
+
+        // Nothing left to do the second time
+        assertEquals(0, mManager.apply(mContext, mManager.getProfile(1)));
+    }
+
+    public void testSwitchingRestoresOriginals() throws IOException {
+        writeProfile(1, "[files]\n"
+                + "2 " + MIN_CPUS + "\n"
+                + "90 " + UPMIGRATE + "\n");
+        writeProfile(2, "[files]\n"
+                + "1401600 " + HISPEED_FREQ + "\n"
+                + "80 " + UPMIGRATE + "\n");
+
+        mManager.apply(mContext, mManager.getProfile(1));
+        assertEquals(3, mManager.apply(mContext, mManager.getProfile(2)));
+        assertEquals("0", readNode(MIN_CPUS));
+        assertEquals("1401600", readNode(HISPEED_FREQ));
+        assertEquals("80", readNode(UPMIGRATE));
+
+        // No profile puts every node touched so far back
+        assertEquals(2, mManager.apply(mContext, null));
+        assertEquals("0", readNode(MIN_CPUS));
+        assertEquals("1248000", readNode(HISPEED_FREQ));
+        assertEquals("95", readNode(UPMIGRATE));
+    }
+
+    public void testValuesAreComparedNormalized() throws IOException {
+        String delay = "/sys/devices/system/cpu/cpu4/cpufreq/interactive/above_hispeed_delay";
+        mSysfs.write(delay, "19000 1400000:39000\t1700000:19000\n");
+        writeProfile(1, "[files]\n19000  1400000:39000 1700000:19000 " + delay + "\n");
+
+        assertEquals(0, mManager.apply(mContext, mManager.getProfile(1)));
+    }
+
+    public void testExternallyManagedNodesAreLeftAlone() throws IOException {
+        writeProfile(1, "[files]\n"
+                + "2 " + MIN_CPUS + "\n"
+                + "90 " + UPMIGRATE + "\n");
+        writeProfile(2, "[files]\n"
+                + "3 " + MIN_CPUS + "\n"
+                + "80 " + UPMIGRATE + "\n");
+        mManager.apply(mContext, mManager.getProfile(1));
+
+        // e.g. perfd, or cpu4 coming back from hotplug with its defaults
+        mSysfs.write(MIN_CPUS, "1\n");
+        assertEquals(1, mManager.apply(mContext, mManager.getProfile(2)));
+        assertEquals("1", readNode(MIN_CPUS));
+        assertEquals("80", readNode(UPMIGRATE));
+
+        // Neither restored nor written again until the next boot
+        assertEquals(1, mManager.apply(mContext, null));
+        assertEquals("1", readNode(MIN_CPUS));
+        assertEquals("95", readNode(UPMIGRATE));
+
+        PerfProfileManager.resetOriginals(mContext);
+        assertEquals(2, mManager.apply(mContext, mManager.getProfile(1)));
+        assertEquals("2", readNode(MIN_CPUS));
+    }
+
+    public void testMissingNodesAreSkipped() throws IOException {
+        writeProfile(1, "[files]\n"
+                + "1 /sys/module/missing/parameters/enabled\n"
+                + "2 " + MIN_CPUS + "\n");
+
+        assertEquals(1, mManager.apply(mContext, mManager.getProfile(1)));
+        assertEquals("2", readNode(MIN_CPUS));
+    }
+}
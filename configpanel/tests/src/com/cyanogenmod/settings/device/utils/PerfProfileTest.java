@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device.utils;
+
+import android.test.AndroidTestCase;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+
+public class PerfProfileTest extends AndroidTestCase {
+
+    private static PerfProfile parse(String text) throws IOException {
+        return PerfProfile.parse(3, new BufferedReader(new StringReader(text)));
+    }
+
+    public void testSections() throws IOException {
+        PerfProfile profile = parse(""
+                + "# Balanced profile\n"
+                + "[locks]\n"
+                + "0x1E00 # min cpus\n"
+                + "16\n"
+                + "[files]\n"
+                + "1 /sys/devices/system/cpu/cpu4/core_ctl/min_cpus\n"
+                + "19000 1400000:39000\t/sys/devices/system/cpu/cpu4/cpufreq/interactive/above_hispeed_delay\n"
+                + "[priority] # Balanced\n"
+                + "2\n");
+
+        assertEquals(3, profile.getIndex());
+        assertEquals(2, profile.getPriority());
+        assertEquals("Balanced", profile.getDescription());
+
+        int[] locks = profile.getLocks();
+        assertEquals(2, locks.length);
+        assertEquals(0x1E00, locks[0]);
+        assertEquals(16, locks[1]);
+        assertTrue(profile.needsPerfd());
+
+        assertEquals(2, profile.getFileCount());
+        assertEquals("/sys/devices/system/cpu/cpu4/core_ctl/min_cpus", profile.getPath(0));
+        assertEquals("1", profile.getValue(0));
+        assertEquals("/sys/devices/system/cpu/cpu4/cpufreq/interactive/above_hispeed_delay",
+                profile.getPath(1));
+        assertEquals("19000 1400000:39000", profile.getValue(1));
+    }
+
+    public void testEmpty() throws IOException {
+        PerfProfile profile = parse("");
+        assertEquals(PerfProfile.NO_PRIORITY, profile.getPriority());
+        assertNull(profile.getDescription());
+        assertEquals(0, profile.getLocks().length);
+        assertFalse(profile.needsPerfd());
+        assertEquals(0, profile.getFileCount());
+    }
+
+    public void testMalformedLinesAreSkipped() throws IOException {
+        PerfProfile profile = parse(""
+                + "1 /proc/sys/kernel/sched_boost\n"
+                + "[locks]\n"
+                + "0xZZ\n"
+                + "0x41\n"
+                + "[unknown]\n"
+                + "1 /proc/sys/kernel/sched_boost\n"
+                + "[files]\n"
+                + "novalue\n"
+                + "1 relative/path\n"
+                + "95 /proc/sys/kernel/sched_upmigrate\n"
+                + "[priority]\n"
+                + "high\n");
+
+        assertEquals(1, profile.getLocks().length);
+        assertEquals(0x41, profile.getLocks()[0]);
+        assertEquals(1, profile.getFileCount());
+        assertEquals("/proc/sys/kernel/sched_upmigrate", profile.getPath(0));
+        assertEquals("95", profile.getValue(0));
+        assertEquals(PerfProfile.NO_PRIORITY, profile.getPriority());
+        assertNull(profile.getDescription());
+    }
+}
@@ -0,0 +1,215 @@
+#!/usr/bin/env python
+#
+# Copyright (C) 2016 The CyanogenMod Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+"""Generates GestureRegistry.java from gestures.conf.
+
+Usage: gen_registry.py <gestures.conf> <GestureRegistry.java>
+"""
+
+import os
+import sys
+
+PACKAGE = 'com.cyanogenmod.settings.device'
+UNSET = '-'
+
+
+def fail(conf, lineno, msg):
+    sys.stderr.write('%s:%d: %s\n' % (conf, lineno, msg))
+    sys.exit(1)
+
+
+def parse(conf):
+    sections = {'actions': [], 'categories': [], 'gestures': []}
+    current = None
+    with open(conf) as f:
+        for lineno, line in enumerate(f, 1):
+            line = line.split('#', 1)[0].strip()
+            if not line:
+                continue
+            if line.startswith('[') and line.endswith(']'):
+                current = line[1:-1]
+                if current not in sections:
+                    fail(conf, lineno, 'unknown section %s' % line)
+                continue
+            if current is None:
+                fail(conf, lineno, 'entry outside of a section')
+            sections[current].append((lineno, line.split()))
+
+    actions = []
+    for lineno, fields in sections['actions']:
+        if len(fields) != 1 or fields[0] in actions:
+            fail(conf, lineno, 'bad action')
+        actions.append(fields[0])
+
+    categories = []
+    for lineno, fields in sections['categories']:
+        if len(fields) != 3 or fields[2] not in ('true', 'false'):
+            fail(conf, lineno, 'expected: name key true|false')
+        if fields[0] in [c[0] for c in categories]:
+            fail(conf, lineno, 'duplicate category %s' % fields[0])
+        categories.append((fields[0], fields[1], fields[2] == 'true'))
+
+    gestures = []
+    scancodes = set()
+    category_names = [c[0] for c in categories]
+    for lineno, fields in sections['gestures']:
+        if len(fields) != 5:
+            fail(conf, lineno, 'expected: name sysfs scancode category action')
+        name, sysfs, scancode, category, action = fields
+        if name in [g[0] for g in gestures]:
+            fail(conf, lineno, 'duplicate gesture %s' % name)
+        if scancode == UNSET:
+            scancode = None
+            if action != UNSET:
+                fail(conf, lineno, 'an action needs a scancode')
+        else:
+            scancode = int(scancode)
+            if scancode < 0 or scancode > 255 or scancode in scancodes:
+                fail(conf, lineno, 'bad scancode %d' % scancode)
+            scancodes.add(scancode)
+            if action not in actions:
+                fail(conf, lineno, 'unknown action %s' % action)
+        if category != UNSET and category not in category_names:
+            fail(conf, lineno, 'unknown category %s' % category)
+        gestures.append((name, sysfs, scancode,
+                None if category == UNSET else category,
+                None if action == UNSET else action))
+
+    # Category states are stored as a bitmask, see GestureConfigSnapshot
+    if len(categories) > 31:
+        sys.stderr.write('%s: too many categories\n' % conf)
+        sys.exit(1)
+
+    for name, _, _ in categories:
+        if not [g for g in gestures if g[3] == name]:
+            sys.stderr.write('%s: category %s has no gestures\n' % (conf, name))
+            sys.exit(1)
+
+    return actions, categories, gestures
+
+
+def const(prefix, name):
+    return '%s_%s' % (prefix, name.upper())
+
+
+def java_string(value):
+    return 'null' if value is None else '"%s"' % value
+
+
+def generate(conf, actions, categories, gestures):
+    out = []
+    w = out.append
+
+    w('/*')
+    w(' * Generated by gen_registry.py from %s, do not edit.' % os.path.basename(conf))
+    w(' */')
+    w('')
+    w('package %s;' % PACKAGE)
+    w('')
+    w('/**')
+    w(' * Touchscreen gesture, category and action tables, indexed by ordinal.')
+    w(' */')
+    w('public final class GestureRegistry {')
+    w('')
+    w('    public static final int NONE = -1;')
+    w('')
+
+    w('    // Actions')
+    for i, action in enumerate(actions):
+        w('    public static final int %s = %d;' % (const('ACTION', action), i))
+    w('    public static final int ACTION_COUNT = %d;' % len(actions))
+    w('')
+
+    w('    // Categories')
+    for i, (name, _, _) in enumerate(categories):
+        w('    public static final int %s = %d;' % (const('CATEGORY', name), i))
+    w('    public static final int CATEGORY_COUNT = %d;' % len(categories))
+    w('')
+    w('    // Gestures')
+    for i, gesture in enumerate(gestures):
+        w('    public static final int %s = %d;' % (const('GESTURE', gesture[0]), i))
+    w('    public static final int GESTURE_COUNT = %d;' % len(gestures))
+    w('')
+    w('    public static final String[] GESTURE_NAMES = new String[] {')
+    w(',\n'.join('        "%s"' % g[0] for g in gestures))
+    w('    };')
+    w('')
+    w('    public static final String[] CATEGORY_KEYS = new String[] {')
+    w(',\n'.join('        "%s"' % key for _, key, _ in categories))
+    w('    };')
+    w('')
+    w('    public static final boolean[] CATEGORY_DEFAULTS = new boolean[] {')
+    w(',\n'.join('        %s' % ('true' if default else 'false')
+                 for _, _, default in categories))
+    w('    };')
+    w('')
+    w('    public static final int[][] CATEGORY_GESTURES = new int[][] {')
+    w(',\n'.join('        { %s }' % ', '.join(const('GESTURE', g[0])
+                                               for g in gestures if g[3] == name)
+                 for name, _, _ in categories))
+    w('    };')
+    w('')
+
+    w('    // Key in gesture_list')
+    w('    public static final String[] SYSFS_KEYS = new String[] {')
+    w(',\n'.join('        "%s"' % g[1] for g in gestures))
+    w('    };')
+    w('')
+    w('    // Scancode reported to the keyhandler, or NONE')
+    w('    public static final int[] SCANCODES = new int[] {')
+    w(',\n'.join('        %s' % ('NONE' if g[2] is None else g[2]) for g in gestures))
+    w('    };')
+    w('')
+    w('    public static final int[] CATEGORIES = new int[] {')
+    w(',\n'.join('        %s' % ('NONE' if g[3] is None else const('CATEGORY', g[3]))
+                 for g in gestures))
+    w('    };')
+    w('')
+    w('    // Settings.System key holding the action, or null')
+    w('    public static final String[] ACTION_KEYS = new String[] {')
+    w(',\n'.join('        %s' % java_string(None if g[2] is None
+                                            else 'touchscreen_gesture_%s_action' % g[0])
+                 for g in gestures))
+    w('    };')
+    w('')
+    w('    public static final int[] DEFAULT_ACTIONS = new int[] {')
+    w(',\n'.join('        %s' % ('ACTION_NONE' if g[4] is None else const('ACTION', g[4]))
+                 for g in gestures))
+    w('    };')
+    w('')
+    w('    // Gestures reported as key events')
+    w('    public static final int[] KEY_GESTURES = new int[] {')
+    w(',\n'.join('        %s' % const('GESTURE', g[0]) for g in gestures if g[2] is not None))
+    w('    };')
+    w('')
+    w('    private GestureRegistry() {}')
+    w('}')
+    return '\n'.join(out) + '\n'
+
+
+def main(argv):
+    if len(argv) != 3:
+        sys.stderr.write(__doc__)
+        return 1
+    actions, categories, gestures = parse(argv[1])
+    with open(argv[2], 'w') as f:
+        f.write(generate(argv[1], actions, categories, gestures))
+    return 0
+
+
+if __name__ == '__main__':
+    sys.exit(main(sys.argv))
@@ -0,0 +1,33 @@
+#
+# Copyright (C) 2016 The CyanogenMod Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+# Adds the generated GestureRegistry to the module being defined.
+# Include after LOCAL_MODULE_CLASS and LOCAL_MODULE or LOCAL_PACKAGE_NAME
+# are set, and LOCAL_IS_HOST_MODULE for host modules.
+
+GESTURE_REGISTRY_DIR := $(dir $(lastword $(MAKEFILE_LIST)))
+GESTURE_REGISTRY_CONF := $(GESTURE_REGISTRY_DIR)gestures.conf
+GESTURE_REGISTRY_TOOL := $(GESTURE_REGISTRY_DIR)gen_registry.py
+
+gesture_registry_dir := $(call intermediates-dir-for,$(LOCAL_MODULE_CLASS),$(or $(LOCAL_MODULE),$(LOCAL_PACKAGE_NAME)),$(if $(LOCAL_IS_HOST_MODULE),HOST),COMMON)
+gesture_registry_src := $(gesture_registry_dir)/gen/com/cyanogenmod/settings/device/GestureRegistry.java
+$(gesture_registry_src): PRIVATE_CUSTOM_TOOL = python $(GESTURE_REGISTRY_TOOL) $< $@
+$(gesture_registry_src): $(GESTURE_REGISTRY_CONF) $(GESTURE_REGISTRY_TOOL)
+	$(transform-generated-source)
+
+LOCAL_GENERATED_SOURCES += $(gesture_registry_src)
+gesture_registry_dir :=
+gesture_registry_src :=
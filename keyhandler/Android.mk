@@ -3,10 +3,14 @@ LOCAL_PATH:= $(call my-dir)
 include $(CLEAR_VARS)
 
 LOCAL_MODULE := com.cyanogenmod.keyhandler
+LOCAL_MODULE_CLASS := JAVA_LIBRARIES
 LOCAL_SRC_FILES := $(call all-java-files-under,src)
 LOCAL_MODULE_TAGS := optional
 LOCAL_DEX_PREOPT := false
 LOCAL_STATIC_JAVA_LIBRARIES := org.cyanogenmod.platform.internal
 
+include $(LOCAL_PATH)/../gestures/registry.mk
+
 include $(BUILD_JAVA_LIBRARY)
 
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.os.SystemClock;
+import android.util.Base64;
+import android.view.KeyEvent;
+
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed size ring of the raw events seen by the gesture path, kept so
+ * field traces can be pulled and replayed off-device. Only gesture and
+ * wakeup keys are recorded, since the dump is readable with DUMP.
+ *
+ * Every record is RECORD_SIZE little endian bytes:
+ *
+ *   u8  type         TYPE_KEY or TYPE_PROXIMITY
+ *   u8  action       key action, or 1 if the sample reads as covered
+ *   u16 scancode     0 for proximity samples
+ *   i32 code         keycode, or the raw bits of the proximity value
+ *   i64 time0        key down time (ms), or sensor timestamp (ns)
+ *   i64 time1        key event time (ms), 0 for proximity samples
+ *   i64 recorded     uptime (ms) at which the event was recorded
+ *
+ * The dump is a HEADER_SIZE byte header (magic, version, record size,
+ * record count) followed by the records, oldest first, base64 encoded.
+ */
+class EventRecorder {
+
+    static final int TYPE_KEY = 1;
+    static final int TYPE_PROXIMITY = 2;
+
+    private static final int MAGIC = 0x43455247; // "GREC"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 32;
+
+    // 128KB of records, the ring lives in system_server
+    static final int MAX_CAPACITY = 4096;
+
+    private final ByteBuffer mRing;
+    private final int mCapacity;
+    private int mNext;
+    private int mCount;
+
+    EventRecorder(int capacity) {
+        mCapacity = Math.min(capacity, MAX_CAPACITY);
+        mRing = ByteBuffer.allocate(mCapacity * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    synchronized void recordKey(KeyEvent event) {
+        int offset = advance();
+        mRing.put(offset, (byte) TYPE_KEY);
+        mRing.put(offset + 1, (byte) event.getAction());
+        mRing.putShort(offset + 2, (short) event.getScanCode());
+        mRing.putInt(offset + 4, event.getKeyCode());
+        mRing.putLong(offset + 8, event.getDownTime());
+        mRing.putLong(offset + 16, event.getEventTime());
+        mRing.putLong(offset + 24, SystemClock.uptimeMillis());
+    }
+
+    synchronized void recordProximity(float value, boolean covered, long timestamp) {
+        int offset = advance();
+        mRing.put(offset, (byte) TYPE_PROXIMITY);
+        mRing.put(offset + 1, (byte) (covered ? 1 : 0));
+        mRing.putShort(offset + 2, (short) 0);
+        mRing.putInt(offset + 4, Float.floatToRawIntBits(value));
+        mRing.putLong(offset + 8, timestamp);
+        mRing.putLong(offset + 16, 0);
+        mRing.putLong(offset + 24, SystemClock.uptimeMillis());
+    }
+
+    private int advance() {
+        int offset = mNext * RECORD_SIZE;
+        mNext = (mNext + 1) % mCapacity;
+        if (mCount < mCapacity) {
+            mCount++;
+        }
+        return offset;
+    }
+
+    /**
+     * @return the header and the recorded events, oldest first
+     */
+    synchronized byte[] snapshot() {
+        ByteBuffer out = ByteBuffer.allocate(HEADER_SIZE + mCount * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(MAGIC);
+        out.putInt(VERSION);
+        out.putInt(RECORD_SIZE);
+        out.putInt(mCount);
+
+        byte[] ring = mRing.array();
+        int first = mCount < mCapacity ? 0 : mNext;
+        for (int i = 0; i < mCount; i++) {
+            out.put(ring, ((first + i) % mCapacity) * RECORD_SIZE, RECORD_SIZE);
+        }
+        return out.array();
+    }
+
+    void dump(PrintWriter pw, boolean full) {
+        byte[] data = snapshot();
+        pw.println("  recorder: capacity=" + mCapacity + " recorded="
+                + (data.length - HEADER_SIZE) / RECORD_SIZE);
+        if (full) {
+            pw.println(Base64.encodeToString(data, Base64.NO_WRAP));
+        }
+    }
+}
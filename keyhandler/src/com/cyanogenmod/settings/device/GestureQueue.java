@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import java.io.PrintWriter;
+
+/**
+ * Bounded FIFO of gesture scancodes between the input path and the event
+ * handler.
+ *
+ * A gesture identical to the last accepted one and arriving within the
+ * coalescing window is folded into it. Distinct gestures are kept in order.
+ * Once full, either the incoming or the oldest queued gesture is dropped,
+ * depending on the policy.
+ */
+class GestureQueue {
+
+    static final int EMPTY = -1;
+
+    static final int POLICY_DROP_NEWEST = 0;
+    static final int POLICY_DROP_OLDEST = 1;
+
+    private final int[] mScancodes;
+    private final long mWindow;
+    private final int mPolicy;
+    private int mHead;
+    private int mCount;
+
+    private int mLastScancode = EMPTY;
+    private long mLastTime;
+
+    private long mEnqueued;
+    private long mCoalesced;
+    private long mDropped;
+
+    GestureQueue(int capacity, long window, int policy) {
+        mScancodes = new int[capacity];
+        mWindow = window;
+        mPolicy = policy;
+    }
+
+    /**
+     * @return true if the gesture was queued, false if it was coalesced
+     *         or dropped
+     */
+    synchronized boolean offer(int scancode, long eventTime) {
+        if (scancode == mLastScancode && eventTime - mLastTime < mWindow) {
+            mCoalesced++;
+            return false;
+        }
+
+        if (mCount == mScancodes.length) {
+            mDropped++;
+            if (mPolicy == POLICY_DROP_NEWEST) {
+                return false;
+            }
+            mHead = (mHead + 1) % mScancodes.length;
+            mCount--;
+        }
+
+        mScancodes[(mHead + mCount) % mScancodes.length] = scancode;
+        mCount++;
+        mEnqueued++;
+        mLastScancode = scancode;
+        mLastTime = eventTime;
+        return true;
+    }
+
+    /**
+     * @return the oldest queued scancode, or EMPTY
+     */
+    synchronized int poll() {
+        if (mCount == 0) {
+            return EMPTY;
+        }
+        int scancode = mScancodes[mHead];
+        mHead = (mHead + 1) % mScancodes.length;
+        mCount--;
+        return scancode;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  queue: capacity=" + mScancodes.length + " window=" + mWindow
+                + "ms policy=" + (mPolicy == POLICY_DROP_NEWEST ? "drop_newest" : "drop_oldest")
+                + " enqueued=" + mEnqueued + " coalesced=" + mCoalesced
+                + " dropped=" + mDropped + " pending=" + mCount);
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Per gesture latency histograms and drop counters.
+ *
+ * Every stage is measured from the moment handleKeyEvent received the
+ * gesture. Recording only uses atomics, so it is safe from any thread
+ * without taking locks on the input path.
+ */
+class GestureStats {
+
+    // gen_registry.py keeps scancodes below 256
+    private static final int SLOT_TABLE_SIZE = 256;
+
+    static final int STAGE_PROXIMITY = 0;
+    static final int STAGE_DISPATCH = 1;
+    static final int STAGE_COMPLETE = 2;
+    private static final String[] STAGE_NAMES = new String[] {
+        "proximity", "dispatch", "complete"
+    };
+
+    static final int DROP_BUSY = 0;
+    static final int DROP_CALL_STATE = 1;
+    static final int DROP_PROXIMITY = 2;
+    private static final String[] DROP_NAMES = new String[] {
+        "busy", "call_state", "proximity"
+    };
+
+    private final int[] mScancodes;
+    // Scancode indexed slot numbers, -1 for unknown scancodes
+    private final int[] mSlots = new int[SLOT_TABLE_SIZE];
+    private final AtomicLongArray mReceivedTime;
+    private final LatencyHistogram[][] mHistograms;
+    private final AtomicInteger[] mDropped = new AtomicInteger[DROP_NAMES.length];
+
+    // Time spent in handleKeyEvent for accepted gestures
+    private final LatencyHistogram mInput = new LatencyHistogram();
+
+    GestureStats(int[] scancodes) {
+        mScancodes = scancodes;
+        Arrays.fill(mSlots, -1);
+        for (int i = 0; i < scancodes.length; i++) {
+            mSlots[scancodes[i]] = i;
+        }
+        mReceivedTime = new AtomicLongArray(scancodes.length);
+        mHistograms = new LatencyHistogram[scancodes.length][STAGE_NAMES.length];
+        for (int i = 0; i < scancodes.length; i++) {
+            for (int j = 0; j < STAGE_NAMES.length; j++) {
+                mHistograms[i][j] = new LatencyHistogram();
+            }
+        }
+        for (int i = 0; i < mDropped.length; i++) {
+            mDropped[i] = new AtomicInteger();
+        }
+    }
+
+    void markReceived(int scancode) {
+        int slot = slotOf(scancode);
+        if (slot >= 0) {
+            mReceivedTime.set(slot, System.nanoTime());
+        }
+    }
+
+    void mark(int scancode, int stage) {
+        int slot = slotOf(scancode);
+        if (slot >= 0) {
+            long received = mReceivedTime.get(slot);
+            if (received != 0) {
+                mHistograms[slot][stage].add(System.nanoTime() - received);
+            }
+        }
+    }
+
+    void markInput(long nanos) {
+        mInput.add(nanos);
+    }
+
+    void countDropped(int reason) {
+        mDropped[reason].incrementAndGet();
+    }
+
+    private int slotOf(int scancode) {
+        return scancode >= 0 && scancode < mSlots.length ? mSlots[scancode] : -1;
+    }
+
+    void dump(PrintWriter pw) {
+        pw.print("  dropped:");
+        for (int i = 0; i < mDropped.length; i++) {
+            pw.print(" " + DROP_NAMES[i] + "=" + mDropped[i].get());
+        }
+        pw.println();
+        pw.print("  input: ");
+        mInput.dump(pw);
+        for (int i = 0; i < mScancodes.length; i++) {
+            pw.println("  scancode " + mScancodes[i] + ":");
+            for (int j = 0; j < STAGE_NAMES.length; j++) {
+                pw.print("    " + STAGE_NAMES[j] + ": ");
+                mHistograms[i][j].dump(pw);
+            }
+        }
+    }
+
+    /**
+     * Fixed size histogram with power of two millisecond buckets.
+     */
+    static class LatencyHistogram {
+        private static final int BUCKETS = 16;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+
+        void add(long nanos) {
+            long millis = nanos / 1000000;
+            int bucket = 64 - Long.numberOfLeadingZeros(millis);
+            mBuckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(nanos);
+
+            long max;
+            do {
+                max = mMaxNanos.get();
+            } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+        }
+
+        void dump(PrintWriter pw) {
+            long count = mCount.get();
+            if (count == 0) {
+                pw.println("no samples");
+                return;
+            }
+            pw.print("count=" + count
+                    + " avg=" + (mTotalNanos.get() / count / 1000) + "us"
+                    + " max=" + (mMaxNanos.get() / 1000) + "us");
+            for (int i = 0; i < BUCKETS; i++) {
+                long samples = mBuckets.get(i);
+                if (samples != 0) {
+                    String bound = i == BUCKETS - 1 ? "inf" : Long.toString(1L << i);
+                    pw.print(" <" + bound + "ms:" + samples);
+                }
+            }
+            pw.println();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Partial wakelock held on behalf of gesture actions.
+ *
+ * Each gesture acquires the lock with the timeout as a safety ceiling and
+ * releases it as soon as its action signals completion. The underlying
+ * lock is dropped once no gesture holds it anymore. The time each gesture
+ * kept the lock is accumulated for dumpsys.
+ */
+class GestureWakeLock {
+
+    // gen_registry.py keeps scancodes below 256
+    private static final int SLOT_TABLE_SIZE = 256;
+
+    private final WakeLock mWakeLock;
+    private final long mTimeout;
+    private final int[] mScancodes;
+    // Scancode indexed slot numbers, -1 for unknown scancodes
+    private final int[] mSlots = new int[SLOT_TABLE_SIZE];
+
+    private final long[] mAcquireTime;
+    private final long[] mHeldTime;
+    private final int[] mAcquires;
+    private final int[] mTimeouts;
+    private int mHolders;
+
+    GestureWakeLock(PowerManager powerManager, long timeout, int[] scancodes) {
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                "GestureWakeLock");
+        mWakeLock.setReferenceCounted(false);
+        mTimeout = timeout;
+        mScancodes = scancodes;
+        Arrays.fill(mSlots, -1);
+        for (int i = 0; i < scancodes.length; i++) {
+            mSlots[scancodes[i]] = i;
+        }
+        mAcquireTime = new long[scancodes.length];
+        mHeldTime = new long[scancodes.length];
+        mAcquires = new int[scancodes.length];
+        mTimeouts = new int[scancodes.length];
+    }
+
+    synchronized void acquire(int scancode) {
+        int slot = slotOf(scancode);
+        if (slot < 0) {
+            return;
+        }
+        if (!mWakeLock.isHeld()) {
+            // Any previous holder ran into the timeout
+            expireHolders();
+        }
+        long now = SystemClock.elapsedRealtime();
+        if (mAcquireTime[slot] == 0) {
+            mHolders++;
+        } else {
+            mHeldTime[slot] += now - mAcquireTime[slot];
+        }
+        mAcquireTime[slot] = now;
+        mAcquires[slot]++;
+        mWakeLock.acquire(mTimeout);
+    }
+
+    synchronized void release(int scancode) {
+        int slot = slotOf(scancode);
+        if (slot < 0 || mAcquireTime[slot] == 0) {
+            return;
+        }
+        long held = SystemClock.elapsedRealtime() - mAcquireTime[slot];
+        if (held >= mTimeout) {
+            mTimeouts[slot]++;
+            held = mTimeout;
+        }
+        mHeldTime[slot] += held;
+        mAcquireTime[slot] = 0;
+        if (--mHolders == 0) {
+            mWakeLock.release();
+        }
+    }
+
+    private void expireHolders() {
+        for (int i = 0; i < mAcquireTime.length; i++) {
+            if (mAcquireTime[i] != 0) {
+                mHeldTime[i] += mTimeout;
+                mTimeouts[i]++;
+                mAcquireTime[i] = 0;
+            }
+        }
+        mHolders = 0;
+    }
+
+    private int slotOf(int scancode) {
+        return scancode >= 0 && scancode < mSlots.length ? mSlots[scancode] : -1;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  wakelock: held=" + mWakeLock.isHeld() + " holders=" + mHolders);
+        for (int i = 0; i < mScancodes.length; i++) {
+            if (mAcquires[i] != 0) {
+                pw.println("    scancode " + mScancodes[i] + ": acquired=" + mAcquires[i]
+                        + " held=" + mHeldTime[i] + "ms timeouts=" + mTimeouts[i]);
+            }
+        }
+    }
+}
@@ -17,118 +17,372 @@
 package com.cyanogenmod.settings.device;
 
 import android.Manifest;
+import android.content.BroadcastReceiver;
+import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.Resources;
+import android.database.ContentObserver;
 import android.hardware.Sensor;
-import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCharacteristics;
 import android.hardware.camera2.CameraManager;
 import android.media.session.MediaSessionLegacyHelper;
+import android.net.Uri;
+import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
-import android.os.PowerManager.WakeLock;
+import android.os.Process;
+import android.os.ServiceManager;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.Vibrator;
+import android.provider.Settings;
+import android.telephony.PhoneStateListener;
 import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.view.KeyEvent;
 
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.os.DeviceKeyHandler;
-import com.android.internal.util.ArrayUtils;
 
 import cyanogenmod.providers.CMSettings;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 public class KeyHandler implements DeviceKeyHandler {
 
     private static final String TAG = KeyHandler.class.getSimpleName();
     private static final int GESTURE_REQUEST = 1;
+    private static final int GESTURE_QUEUED = 2;
+    private static final String STATS_SERVICE = "gesture_stats";
 
-    // Supported scancodes
+    // Fingerprint wakeup scancode
     private static final int KEY_WAKEUP = 143;
-    private static final int GESTURE_CIRCLE_SCANCODE = 250;
-    private static final int GESTURE_SWIPE_DOWN_SCANCODE = 199;
-    private static final int GESTURE_V_SCANCODE = 252;
-    private static final int GESTURE_LTR_SCANCODE = 253;
-    private static final int GESTURE_GTR_SCANCODE = 254;
 
     private static final int GESTURE_WAKELOCK_DURATION = 3000;
 
-    private static final int[] sSupportedGestures = new int[] {
-        GESTURE_CIRCLE_SCANCODE,
-        GESTURE_SWIPE_DOWN_SCANCODE,
-        GESTURE_V_SCANCODE,
-        GESTURE_LTR_SCANCODE,
-        GESTURE_GTR_SCANCODE
-    };
+    // Torch states
+    private static final int TORCH_OFF = 0;
+    private static final int TORCH_ON = 1;
+    private static final int TORCH_TURNING_OFF = 2;
+    private static final int TORCH_TURNING_ON = 3;
+    private static final int TORCH_UNAVAILABLE = 4;
+
+    // Gesture queue tuning, see system.prop
+    private static final int GESTURE_QUEUE_CAPACITY = 8;
+    private static final String PROP_QUEUE_WINDOW = "ro.gesture.queue.window";
+    private static final String PROP_QUEUE_DROP_POLICY = "ro.gesture.queue.drop_policy";
+
+    // How long a proximity result is reused, 0 disables the cache
+    private static final String PROP_PROXIMITY_CACHE = "ro.gesture.proximity.cache_ms";
+    // Lower bound of the soft proximity deadline, see ProximityGate.
+    // 0 disables it.
+    private static final String PROP_PROXIMITY_MIN_TIMEOUT =
+            "ro.gesture.proximity.min_timeout_ms";
+
+    // Number of raw events to keep for replay, 0 disables recording.
+    // Capped at EventRecorder.MAX_CAPACITY.
+    private static final String PROP_RECORD_SIZE = "persist.gesture.record_size";
+    private static final String DUMP_ARG_RECORD = "record";
+
+    // Scancodes of the gestures reported as key events, see gestures.conf
+    private static final int[] sSupportedGestures =
+            new int[GestureRegistry.KEY_GESTURES.length];
+
+    // Scancodes are below 256, so the action table is indexed directly
+    private static final int ACTION_TABLE_SIZE = 256;
+    private static final boolean[] sSupportedScancodes = new boolean[ACTION_TABLE_SIZE];
+
+    static {
+        for (int i = 0; i < sSupportedGestures.length; i++) {
+            int scancode = GestureRegistry.SCANCODES[GestureRegistry.KEY_GESTURES[i]];
+            sSupportedGestures[i] = scancode;
+            sSupportedScancodes[scancode] = true;
+        }
+    }
 
     private final Context mContext;
     private final PowerManager mPowerManager;
+    private final GestureStats mStats = new GestureStats(sSupportedGestures);
+    private final GestureQueue mGestureQueue;
+    private final EventRecorder mRecorder;
+    private final HandlerThread mWorkerThread;
     private EventHandler mEventHandler;
-    private SensorManager mSensorManager;
+    private final Intent mCameraIntent =
+            new Intent(cyanogenmod.content.Intent.ACTION_SCREEN_CAMERA_GESTURE);
+    private MediaSessionLegacyHelper mMediaHelper;
     private CameraManager mCameraManager;
     private String mRearCameraId;
-    private boolean mTorchEnabled;
-    private Sensor mProximitySensor;
+    private long mCameraResolveTime = -1;
+    private ProximityGate mProximityGate;
     private Vibrator mVibrator;
-    WakeLock mProximityWakeLock;
-    WakeLock mGestureWakeLock;
+    private GestureWakeLock mGestureWakeLock;
+
+    // Only written on the worker thread: the torch callback is delivered
+    // there and the flashlight gesture runs there. Volatile for the dump.
+    private volatile int mTorchState = TORCH_OFF;
+    private int mTorchPendingScancode = -1;
     private int mProximityTimeOut;
     private boolean mProximityWakeSupported;
+    private boolean mDefaultProximity;
+    private final SettingsObserver mSettingsObserver;
+
+    // Scancode indexed gesture actions, replaced as a whole on settings changes
+    private volatile int[] mActions = buildActionTable(GestureRegistry.DEFAULT_ACTIONS);
+
+    // Kept current by listeners so handleKeyEvent never calls into binder
+    private volatile int mCallState = TelephonyManager.CALL_STATE_IDLE;
+    private volatile boolean mProximityWakeCheckEnabled;
+    private volatile boolean mHapticFeedbackEnabled = true;
 
     public KeyHandler(Context context) {
+        this(context, true);
+    }
+
+    // The allocation test can't publish a system service
+    KeyHandler(Context context, boolean publishStats) {
         mContext = context;
         mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
-        mEventHandler = new EventHandler();
-        mGestureWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-                "GestureWakeLock");
+        // Ordered broadcasts go through the background queue otherwise,
+        // behind any slow receiver there
+        mCameraIntent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+        // Gesture actions run off the input dispatch path
+        mWorkerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mWorkerThread.start();
+        mEventHandler = new EventHandler(mWorkerThread.getLooper());
+        mGestureQueue = new GestureQueue(GESTURE_QUEUE_CAPACITY,
+                SystemProperties.getLong(PROP_QUEUE_WINDOW, 0),
+                "oldest".equals(SystemProperties.get(PROP_QUEUE_DROP_POLICY))
+                        ? GestureQueue.POLICY_DROP_OLDEST : GestureQueue.POLICY_DROP_NEWEST);
+        mGestureWakeLock = new GestureWakeLock(mPowerManager, GESTURE_WAKELOCK_DURATION,
+                sSupportedGestures);
+        int recordSize = SystemProperties.getInt(PROP_RECORD_SIZE, 0);
+        mRecorder = recordSize > 0 ? new EventRecorder(recordSize) : null;
 
         final Resources resources = mContext.getResources();
         mProximityTimeOut = resources.getInteger(
                 org.cyanogenmod.platform.internal.R.integer.config_proximityCheckTimeout);
         mProximityWakeSupported = resources.getBoolean(
                 org.cyanogenmod.platform.internal.R.bool.config_proximityCheckOnWake);
+        mDefaultProximity = resources.getBoolean(
+                org.cyanogenmod.platform.internal.R.bool.config_proximityCheckOnWakeEnabledByDefault);
+        mProximityWakeCheckEnabled = mDefaultProximity;
 
         if (mProximityWakeSupported) {
-            mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
-            mProximitySensor = mSensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
-            mProximityWakeLock = mPowerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
-                    "ProximityWakeLock");
+            SensorManager sensorManager =
+                    (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+            Sensor proximitySensor = sensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+            if (proximitySensor != null) {
+                mProximityGate = new ProximityGate(mPowerManager, sensorManager,
+                        proximitySensor, mEventHandler, mProximityTimeOut,
+                        SystemProperties.getInt(PROP_PROXIMITY_MIN_TIMEOUT, 0),
+                        SystemProperties.getLong(PROP_PROXIMITY_CACHE, 0), mRecorder,
+                        new ProximityGate.Callback() {
+                    @Override
+                    public void onProximityResult(int scancode, boolean allowed) {
+                        mStats.mark(scancode, GestureStats.STAGE_PROXIMITY);
+                        if (allowed) {
+                            mEventHandler.sendMessage(getMessageForKeyEvent(scancode));
+                        } else {
+                            mStats.countDropped(GestureStats.DROP_PROXIMITY);
+                        }
+                    }
+                });
+            }
         }
 
         mVibrator = (Vibrator) context.getSystemService(Context.VIBRATOR_SERVICE);
         if (mVibrator == null || !mVibrator.hasVibrator()) {
             mVibrator = null;
         }
+
+        TelephonyManager tm = (TelephonyManager) context.getSystemService(
+                Context.TELEPHONY_SERVICE);
+        tm.listen(mPhoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
+
+        mSettingsObserver = new SettingsObserver(mEventHandler);
+        mSettingsObserver.observe();
+
+        // The CM settings provider can't be queried this early in boot,
+        // so the cached values are loaded once boot has completed.
+        mContext.registerReceiver(mBootCompletedReceiver,
+                new IntentFilter(Intent.ACTION_BOOT_COMPLETED), null, mEventHandler);
+
+        if (mProximityGate != null) {
+            IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+            screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+            mContext.registerReceiver(mScreenStateReceiver, screenFilter, null, mEventHandler);
+        }
+
+        if (publishStats) {
+            ServiceManager.addService(STATS_SERVICE, new StatsService());
+        }
     }
 
-    private void ensureCameraManager() {
-        if (mCameraManager == null) {
-            mCameraManager = (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
-
-            // Get first rear camera id
-            try {
-                for (final String cameraId : mCameraManager.getCameraIdList()) {
-                    CameraCharacteristics characteristics =
-                            mCameraManager.getCameraCharacteristics(cameraId);
-                    int cOrientation = characteristics.get(CameraCharacteristics.LENS_FACING);
-                    if (cOrientation == CameraCharacteristics.LENS_FACING_BACK) {
-                        mRearCameraId = cameraId;
-                        break;
-                    }
+    Looper getWorkerLooper() {
+        return mWorkerThread.getLooper();
+    }
+
+    private class StatsService extends Binder {
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            mContext.enforceCallingOrSelfPermission(Manifest.permission.DUMP, TAG);
+            pw.println("Gesture stats:");
+            // The camera fields are set under the lock in ensureCameraManager()
+            synchronized (KeyHandler.this) {
+                pw.println("  torch camera: id=" + mRearCameraId
+                        + " resolved in " + mCameraResolveTime + "ms");
+            }
+            pw.println("  torch state: " + mTorchState);
+            mGestureQueue.dump(pw);
+            mGestureWakeLock.dump(pw);
+            if (mProximityGate != null) {
+                mProximityGate.dump(pw);
+            }
+            mStats.dump(pw);
+            if (mRecorder != null) {
+                mRecorder.dump(pw, args != null && args.length > 0
+                        && DUMP_ARG_RECORD.equals(args[0]));
+            }
+        }
+    }
+
+    private final PhoneStateListener mPhoneStateListener = new PhoneStateListener() {
+        @Override
+        public void onCallStateChanged(int state, String incomingNumber) {
+            mCallState = state;
+        }
+    };
+
+    private final BroadcastReceiver mBootCompletedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mContext.unregisterReceiver(this);
+            mSettingsObserver.update();
+
+            // Resolve the torch camera ahead of the first flashlight gesture,
+            // the camera service is up by now.
+            BackgroundThread.getHandler().post(new Runnable() {
+                @Override
+                public void run() {
+                    ensureCameraManager();
+                }
+            });
+        }
+    };
+
+    // A cached proximity result doesn't survive the screen changing state
+    private final BroadcastReceiver mScreenStateReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mProximityGate.invalidate();
+        }
+    };
+
+    // Final receiver of the camera broadcast, runs once SystemUI handled it.
+    // The gesture's scancode travels as the initial result code.
+    private final BroadcastReceiver mCameraResultReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mGestureWakeLock.release(getResultCode());
+        }
+    };
+
+    private class SettingsObserver extends ContentObserver {
+        SettingsObserver(Handler handler) {
+            super(handler);
+        }
+
+        void observe() {
+            ContentResolver resolver = mContext.getContentResolver();
+            resolver.registerContentObserver(CMSettings.System.getUriFor(
+                    CMSettings.System.PROXIMITY_ON_WAKE), false, this);
+            resolver.registerContentObserver(CMSettings.System.getUriFor(
+                    CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK), false, this);
+            for (int gesture : GestureRegistry.KEY_GESTURES) {
+                resolver.registerContentObserver(Settings.System.getUriFor(
+                        GestureRegistry.ACTION_KEYS[gesture]), false, this);
+            }
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            update();
+        }
+
+        void update() {
+            ContentResolver resolver = mContext.getContentResolver();
+            mProximityWakeCheckEnabled = CMSettings.System.getInt(resolver,
+                    CMSettings.System.PROXIMITY_ON_WAKE, mDefaultProximity ? 1 : 0) == 1;
+            mHapticFeedbackEnabled = CMSettings.System.getInt(resolver,
+                    CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
+
+            int[] actions = new int[GestureRegistry.GESTURE_COUNT];
+            for (int gesture : GestureRegistry.KEY_GESTURES) {
+                actions[gesture] = Settings.System.getInt(resolver,
+                        GestureRegistry.ACTION_KEYS[gesture],
+                        GestureRegistry.DEFAULT_ACTIONS[gesture]);
+            }
+            mActions = buildActionTable(actions);
+        }
+    }
+
+    // Maps the gesture indexed actions to a scancode indexed table
+    private static int[] buildActionTable(int[] actions) {
+        int[] table = new int[ACTION_TABLE_SIZE];
+        for (int gesture : GestureRegistry.KEY_GESTURES) {
+            int action = actions[gesture];
+            table[GestureRegistry.SCANCODES[gesture]] =
+                    action >= 0 && action < GestureRegistry.ACTION_COUNT
+                            ? action : GestureRegistry.ACTION_NONE;
+        }
+        return table;
+    }
+
+    private static boolean isSupportedScancode(int scancode) {
+        return scancode >= 0 && scancode < ACTION_TABLE_SIZE && sSupportedScancodes[scancode];
+    }
+
+    private synchronized void ensureCameraManager() {
+        // Retried until a rear camera is found, a failed lookup at boot
+        // must not leave the flashlight gesture dead until reboot
+        if (mRearCameraId != null) {
+            return;
+        }
+        final long start = SystemClock.elapsedRealtime();
+        final CameraManager cameraManager =
+                (CameraManager) mContext.getSystemService(Context.CAMERA_SERVICE);
+
+        // Get first rear camera id
+        String rearCameraId = null;
+        try {
+            for (final String cameraId : cameraManager.getCameraIdList()) {
+                CameraCharacteristics characteristics =
+                        cameraManager.getCameraCharacteristics(cameraId);
+                int cOrientation = characteristics.get(CameraCharacteristics.LENS_FACING);
+                if (cOrientation == CameraCharacteristics.LENS_FACING_BACK) {
+                    rearCameraId = cameraId;
+                    break;
                 }
-            } catch (CameraAccessException e) {
-                // Ignore
             }
-            if (mRearCameraId == null)
-                Log.e(TAG, "Cannot find rear camera for torch usage");
-            else
-                mCameraManager.registerTorchCallback(new MyTorchCallback(), mEventHandler);
+        } catch (CameraAccessException e) {
+            Log.w(TAG, "Camera lookup failed: " + e);
         }
+        if (rearCameraId == null) {
+            Log.e(TAG, "Cannot find rear camera for torch usage");
+            return;
+        }
+        mCameraManager = cameraManager;
+        mRearCameraId = rearCameraId;
+        mCameraManager.registerTorchCallback(new MyTorchCallback(), mEventHandler);
+        mCameraResolveTime = SystemClock.elapsedRealtime() - start;
     }
 
     private class MyTorchCallback extends CameraManager.TorchCallback {
@@ -136,59 +390,128 @@ public class KeyHandler implements DeviceKeyHandler {
         public void onTorchModeChanged(String cameraId, boolean enabled) {
             if (!cameraId.equals(mRearCameraId))
                 return;
-            mTorchEnabled = enabled;
+            mTorchState = enabled ? TORCH_ON : TORCH_OFF;
+            releaseTorchWakeLock();
         }
 
         @Override
         public void onTorchModeUnavailable(String cameraId) {
             if (!cameraId.equals(mRearCameraId))
                 return;
-            mTorchEnabled = false;
+            mTorchState = TORCH_UNAVAILABLE;
+            releaseTorchWakeLock();
+        }
+    }
+
+    private void releaseTorchWakeLock() {
+        if (mTorchPendingScancode != -1) {
+            mGestureWakeLock.release(mTorchPendingScancode);
+            mTorchPendingScancode = -1;
         }
     }
 
     private class EventHandler extends Handler {
+        EventHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg) {
-            switch (msg.arg1) {
-            case GESTURE_CIRCLE_SCANCODE:
-                doHapticFeedback();
-                mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
-
-                Intent intent = new Intent(cyanogenmod.content.Intent.ACTION_SCREEN_CAMERA_GESTURE);
-                mContext.sendBroadcast(intent, Manifest.permission.STATUS_BAR_SERVICE);
+            switch (msg.what) {
+            case GESTURE_QUEUED:
+                drainGestureQueue();
+                break;
+            case GESTURE_REQUEST:
+                handleGesture(msg.arg1);
                 break;
-            case GESTURE_SWIPE_DOWN_SCANCODE:
+            }
+        }
+
+        private void drainGestureQueue() {
+            int scancode;
+            while ((scancode = mGestureQueue.poll()) != GestureQueue.EMPTY) {
+                if (mProximityWakeCheckEnabled && mProximityGate != null) {
+                    switch (mProximityGate.check(scancode)) {
+                    case ProximityGate.RESULT_PENDING:
+                        break;
+                    case ProximityGate.RESULT_FULL:
+                        mStats.countDropped(GestureStats.DROP_BUSY);
+                        break;
+                    case ProximityGate.RESULT_ALLOWED:
+                        mStats.mark(scancode, GestureStats.STAGE_PROXIMITY);
+                        handleGesture(scancode);
+                        break;
+                    case ProximityGate.RESULT_BLOCKED:
+                        mStats.mark(scancode, GestureStats.STAGE_PROXIMITY);
+                        mStats.countDropped(GestureStats.DROP_PROXIMITY);
+                        break;
+                    }
+                } else {
+                    handleGesture(scancode);
+                }
+            }
+        }
+
+        private void handleGesture(int scancode) {
+            mStats.mark(scancode, GestureStats.STAGE_DISPATCH);
+            switch (mActions[scancode]) {
+            case GestureRegistry.ACTION_CAMERA:
                 doHapticFeedback();
-                dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+                // sendBroadcast() only queues the intent, so hold the
+                // wakelock until the ordered broadcast has been delivered
+                mGestureWakeLock.acquire(scancode);
+                mContext.sendOrderedBroadcast(mCameraIntent,
+                        Manifest.permission.STATUS_BAR_SERVICE, mCameraResultReceiver,
+                        mEventHandler, scancode, null, null);
                 break;
-            case GESTURE_V_SCANCODE:
+            case GestureRegistry.ACTION_FLASHLIGHT:
                 doHapticFeedback();
                 ensureCameraManager();
                 if (mRearCameraId != null) {
-                    mGestureWakeLock.acquire(GESTURE_WAKELOCK_DURATION);
+                    // A toggle during a transition reverts the pending change
+                    final int previous = mTorchState;
+                    final boolean enable = previous != TORCH_ON && previous != TORCH_TURNING_ON;
+
+                    // Held until the torch callback confirms the change
+                    releaseTorchWakeLock();
+                    mGestureWakeLock.acquire(scancode);
+                    mTorchPendingScancode = scancode;
+                    mTorchState = enable ? TORCH_TURNING_ON : TORCH_TURNING_OFF;
                     try {
-                        mCameraManager.setTorchMode(mRearCameraId, !mTorchEnabled);
-                        mTorchEnabled = !mTorchEnabled;
+                        mCameraManager.setTorchMode(mRearCameraId, enable);
                     } catch (CameraAccessException e) {
                         // Ignore
-                        Log.e(TAG, "setTorchMode " + mTorchEnabled + " failed: " + e);
+                        Log.e(TAG, "setTorchMode " + enable + " failed: " + e);
+                        mTorchState = previous;
+                        releaseTorchWakeLock();
                     }
                 }
                 break;
-            case GESTURE_LTR_SCANCODE:
+            case GestureRegistry.ACTION_PLAY_PAUSE:
+                doHapticFeedback();
+                dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE);
+                break;
+            case GestureRegistry.ACTION_PREVIOUS_TRACK:
                 doHapticFeedback();
                 dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_PREVIOUS);
                 break;
-            case GESTURE_GTR_SCANCODE:
+            case GestureRegistry.ACTION_NEXT_TRACK:
                 doHapticFeedback();
                 dispatchMediaKeyWithWakeLockToMediaSession(KeyEvent.KEYCODE_MEDIA_NEXT);
                 break;
             }
+            mStats.mark(scancode, GestureStats.STAGE_COMPLETE);
         }
     }
 
     public boolean handleKeyEvent(KeyEvent event) {
+        // Every key of every input device passes here. Only gesture and
+        // wakeup keys may be recorded, anything else would log keystrokes.
+        if (mRecorder != null && (event.getScanCode() == KEY_WAKEUP
+                || isSupportedScancode(event.getScanCode()))) {
+            mRecorder.recordKey(event);
+        }
+
         // Fingerprint device sends KEY_WAKEUP, but the keylayout remaps
         // that to KEYCODE_TV_INPUT_COMPONENT_1 so we can distinguish it
         // from other sources of KEY_WAKEUP.  Ensure we only drop this
@@ -198,32 +521,29 @@ public class KeyHandler implements DeviceKeyHandler {
             Log.i(TAG, "dropping wakeup event");
             return true;
         }
-        boolean isKeySupported = ArrayUtils.contains(sSupportedGestures, event.getScanCode());
+        if (!isSupportedScancode(event.getScanCode())) {
+            return false;
+        }
 
         // We only care about event up event
-        if (isKeySupported && event.getAction() != KeyEvent.ACTION_UP)
+        if (event.getAction() != KeyEvent.ACTION_UP)
             return true;
 
-        if (isKeySupported && !mEventHandler.hasMessages(GESTURE_REQUEST)) {
-            TelephonyManager tm = (TelephonyManager)mContext.getSystemService(
-                    Context.TELEPHONY_SERVICE);
-            if (tm.getCallState() != TelephonyManager.CALL_STATE_IDLE) {
-                return true;
-            }
+        if (mCallState != TelephonyManager.CALL_STATE_IDLE) {
+            mStats.countDropped(GestureStats.DROP_CALL_STATE);
+            return true;
+        }
 
-            Message msg = getMessageForKeyEvent(event.getScanCode());
-            boolean defaultProximity = mContext.getResources().getBoolean(
-                org.cyanogenmod.platform.internal.R.bool.config_proximityCheckOnWakeEnabledByDefault);
-            boolean proximityWakeCheckEnabled = CMSettings.System.getInt(mContext.getContentResolver(),
-                    CMSettings.System.PROXIMITY_ON_WAKE, defaultProximity ? 1 : 0) == 1;
-            if (mProximityWakeSupported && proximityWakeCheckEnabled && mProximitySensor != null) {
-                mEventHandler.sendMessageDelayed(msg, mProximityTimeOut);
-                processEvent(event.getScanCode());
-            } else {
-                mEventHandler.sendMessage(msg);
+        // Only enqueue here, the worker thread does the rest
+        final long start = System.nanoTime();
+        if (mGestureQueue.offer(event.getScanCode(), event.getEventTime())) {
+            mStats.markReceived(event.getScanCode());
+            if (!mEventHandler.hasMessages(GESTURE_QUEUED)) {
+                mEventHandler.sendEmptyMessage(GESTURE_QUEUED);
             }
         }
-        return isKeySupported;
+        mStats.markInput(System.nanoTime() - start);
+        return true;
     }
 
     private Message getMessageForKeyEvent(int scancode) {
@@ -232,37 +552,28 @@ public class KeyHandler implements DeviceKeyHandler {
         return msg;
     }
 
-    private void processEvent(final int scancode) {
-        mProximityWakeLock.acquire();
-        mSensorManager.registerListener(new SensorEventListener() {
-            @Override
-            public void onSensorChanged(SensorEvent event) {
-                mProximityWakeLock.release();
-                mSensorManager.unregisterListener(this);
-                if (!mEventHandler.hasMessages(GESTURE_REQUEST)) {
-                    // The sensor took to long, ignoring.
-                    return;
-                }
-                mEventHandler.removeMessages(GESTURE_REQUEST);
-                if (event.values[0] == mProximitySensor.getMaximumRange()) {
-                    Message msg = getMessageForKeyEvent(scancode);
-                    mEventHandler.sendMessage(msg);
-                }
-            }
-
-            @Override
-            public void onAccuracyChanged(Sensor sensor, int accuracy) {}
-
-        }, mProximitySensor, SensorManager.SENSOR_DELAY_FASTEST);
+    private synchronized MediaSessionLegacyHelper getMediaHelper() {
+        if (mMediaHelper == null) {
+            mMediaHelper = MediaSessionLegacyHelper.getHelper(mContext);
+        }
+        return mMediaHelper;
     }
 
     private void dispatchMediaKeyWithWakeLockToMediaSession(int keycode) {
-        MediaSessionLegacyHelper helper = MediaSessionLegacyHelper.getHelper(mContext);
+        // Fresh events every time: MediaSessionService and queued media
+        // button broadcasts hold on to them, and receivers look at the
+        // event times, so neither can be recycled
+        KeyEvent event = new KeyEvent(SystemClock.uptimeMillis(),
+                SystemClock.uptimeMillis(), KeyEvent.ACTION_DOWN, keycode, 0);
+        sendMediaButtonEvent(event);
+        sendMediaButtonEvent(KeyEvent.changeAction(event, KeyEvent.ACTION_UP));
+    }
+
+    // Overridden by the allocation test, which must not control the media
+    // playing on the device
+    void sendMediaButtonEvent(KeyEvent event) {
+        MediaSessionLegacyHelper helper = getMediaHelper();
         if (helper != null) {
-            KeyEvent event = new KeyEvent(SystemClock.uptimeMillis(),
-                    SystemClock.uptimeMillis(), KeyEvent.ACTION_DOWN, keycode, 0);
-            helper.sendMediaButtonEvent(event, true);
-            event = KeyEvent.changeAction(event, KeyEvent.ACTION_UP);
             helper.sendMediaButtonEvent(event, true);
         } else {
             Log.w(TAG, "Unable to send media key event");
@@ -270,12 +581,7 @@ public class KeyHandler implements DeviceKeyHandler {
     }
 
     private void doHapticFeedback() {
-        if (mVibrator == null) {
-            return;
-        }
-        boolean enabled = CMSettings.System.getInt(mContext.getContentResolver(),
-                CMSettings.System.TOUCHSCREEN_GESTURE_HAPTIC_FEEDBACK, 1) != 0;
-        if (enabled) {
+        if (mVibrator != null && mHapticFeedbackEnabled) {
             mVibrator.vibrate(50);
         }
     }
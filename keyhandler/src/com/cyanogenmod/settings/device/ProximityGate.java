@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Holds back gestures until the proximity sensor reports the screen as
+ * uncovered.
+ *
+ * A single listener registration serves every gesture that arrives while
+ * a check is in flight. The wakelock is released either on the first
+ * sample or when the timeout expires, in which case the pending gestures
+ * are let through.
+ *
+ * With a cache window, the result of a sample stays valid for that long
+ * and the listener stays registered, so later samples keep it current.
+ * Gestures within the window are answered from the cache without touching
+ * the sensor. The wakelock is held for the whole window, so the device
+ * can't suspend with the sensor powered, and the age of the sample is
+ * checked against elapsed realtime as well. The cache is dropped when the
+ * window ends or invalidate() is called, e.g. on screen on/off.
+ *
+ * Only the configured timeout decides a check: when it expires the pending
+ * gestures are let through, as the sensor may simply be broken. With a
+ * minimum timeout below it, a soft deadline additionally follows the
+ * measured sensor latency: once enough samples are in, the p99 of the
+ * recent samples plus some headroom, never below the EWMA. A sample
+ * missing that deadline only marks the check as late, the check keeps
+ * waiting for the rest of the configured timeout. So the estimate never
+ * lets a gesture through unchecked nor drops one, and the late count shows
+ * how far the configured timeout is from what the sensor needs.
+ */
+class ProximityGate implements SensorEventListener {
+
+    private static final String TAG = ProximityGate.class.getSimpleName();
+
+    private static final int MAX_PENDING = 8;
+
+    // Recent latency samples the p99 is taken from
+    private static final int HISTORY_SIZE = 128;
+    // Samples needed before the soft deadline is lowered
+    private static final int MIN_SAMPLES = 16;
+    // EWMA weight of a new sample, 1/8 like the TCP RTT estimator
+    private static final int EWMA_SHIFT = 3;
+
+    // check() results
+    static final int RESULT_PENDING = 0;
+    static final int RESULT_FULL = 1;
+    static final int RESULT_ALLOWED = 2;
+    static final int RESULT_BLOCKED = 3;
+
+    interface Callback {
+        void onProximityResult(int scancode, boolean allowed);
+    }
+
+    private final SensorManager mSensorManager;
+    private final Sensor mSensor;
+    private final WakeLock mWakeLock;
+    private final Handler mHandler;
+    private final Callback mCallback;
+    private final EventRecorder mRecorder;
+    private final int mMaxTimeout;
+    private final int mMinTimeout;
+    private final long mCacheWindow;
+
+    private final int[] mPending = new int[MAX_PENDING];
+    private int mPendingCount;
+    private boolean mRegistered;
+    private boolean mChecking;
+    private long mRegisterTime;
+    private int mTimeout;
+
+    private boolean mCacheValid;
+    private boolean mCachedAllowed;
+    // elapsedRealtime() of the sample the cache was filled from
+    private long mSampleTime;
+
+    private long mLastLatency = -1;
+    private long mTotalLatency;
+    private int mSamples;
+    private int mTimeouts;
+    private int mLate;
+    private int mCacheHits;
+
+    private final int[] mHistory = new int[HISTORY_SIZE];
+    private final int[] mSorted = new int[HISTORY_SIZE];
+    private int mHistoryCount;
+    private int mHistoryNext;
+    private long mEwma = -1;
+    private int mP99 = -1;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ProximityGate.this) {
+                if (!mChecking) {
+                    return;
+                }
+                long waited = SystemClock.uptimeMillis() - mRegisterTime;
+                if (waited < mMaxTimeout) {
+                    // Missed the soft deadline, wait out the configured timeout
+                    mLate++;
+                    mHandler.postDelayed(this, mMaxTimeout - waited);
+                    return;
+                }
+                mTimeouts++;
+                // The sample would have been at least this late
+                onSample(mMaxTimeout);
+                finish(true, false);
+            }
+        }
+    };
+
+    private final Runnable mExpireRunnable = new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+        }
+    };
+
+    ProximityGate(PowerManager powerManager, SensorManager sensorManager, Sensor sensor,
+            Handler handler, int timeout, int minTimeout, long cacheWindow,
+            EventRecorder recorder, Callback callback) {
+        mSensorManager = sensorManager;
+        mSensor = sensor;
+        mHandler = handler;
+        mMaxTimeout = timeout;
+        mMinTimeout = minTimeout > 0 ? Math.min(minTimeout, timeout) : timeout;
+        mTimeout = timeout;
+        mCacheWindow = cacheWindow;
+        mCallback = callback;
+        mRecorder = recorder;
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                "ProximityWakeLock");
+        // Held by a check and then possibly by the cache, released once
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * Answers a gesture from the cache, or queues it behind the proximity
+     * check, starting one if needed.
+     *
+     * @return RESULT_ALLOWED or RESULT_BLOCKED if answered from the cache,
+     *         RESULT_PENDING if the callback will deliver the result,
+     *         RESULT_FULL if too many gestures are already pending
+     */
+    synchronized int check(int scancode) {
+        if (mCacheValid) {
+            if (SystemClock.elapsedRealtime() - mSampleTime < mCacheWindow) {
+                mCacheHits++;
+                return mCachedAllowed ? RESULT_ALLOWED : RESULT_BLOCKED;
+            }
+            // Stale, check again on the still registered listener
+            mHandler.removeCallbacks(mExpireRunnable);
+            mCacheValid = false;
+        }
+
+        if (mPendingCount == MAX_PENDING) {
+            return RESULT_FULL;
+        }
+        mPending[mPendingCount++] = scancode;
+        if (mChecking) {
+            return RESULT_PENDING;
+        }
+
+        mWakeLock.acquire();
+        mRegisterTime = SystemClock.uptimeMillis();
+        mChecking = true;
+        mHandler.postDelayed(mTimeoutRunnable, mTimeout);
+        if (!mRegistered) {
+            mRegistered = mSensorManager.registerListener(this, mSensor,
+                    SensorManager.SENSOR_DELAY_FASTEST, mHandler);
+            if (!mRegistered) {
+                Log.w(TAG, "Unable to register proximity listener");
+                finish(true, false);
+            }
+        }
+        return RESULT_PENDING;
+    }
+
+    /**
+     * Drops the cached result. A check in flight is not affected.
+     */
+    synchronized void invalidate() {
+        mHandler.removeCallbacks(mExpireRunnable);
+        mCacheValid = false;
+        if (!mChecking) {
+            unregister();
+            mWakeLock.release();
+        }
+    }
+
+    synchronized long getLastLatency() {
+        return mLastLatency;
+    }
+
+    synchronized long getAverageLatency() {
+        return mSamples == 0 ? -1 : mTotalLatency / mSamples;
+    }
+
+    synchronized int getTimeoutCount() {
+        return mTimeouts;
+    }
+
+    synchronized int getTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * @return the share of checks that missed the soft deadline, in percent
+     */
+    synchronized float getLateRate() {
+        int checks = mSamples + mTimeouts;
+        return checks == 0 ? 0 : mLate * 100f / checks;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println("  proximity: last=" + getLastLatency() + "ms avg=" + getAverageLatency()
+                + "ms samples=" + mSamples + " timeouts=" + mTimeouts
+                + " cache_window=" + mCacheWindow + "ms cache_hits=" + mCacheHits);
+        pw.println("  proximity deadline: soft=" + mTimeout + "ms min=" + mMinTimeout
+                + "ms timeout=" + mMaxTimeout + "ms ewma=" + mEwma + "ms p99=" + mP99
+                + "ms late=" + mLate + " late_rate=" + String.format("%.1f", getLateRate())
+                + "%");
+    }
+
+    @Override
+    public synchronized void onSensorChanged(SensorEvent event) {
+        if (!mRegistered) {
+            return;
+        }
+        boolean uncovered = event.values[0] == mSensor.getMaximumRange();
+        if (mRecorder != null) {
+            mRecorder.recordProximity(event.values[0], !uncovered, event.timestamp);
+        }
+
+        if (mChecking) {
+            mLastLatency = SystemClock.uptimeMillis() - mRegisterTime;
+            mTotalLatency += mLastLatency;
+            mSamples++;
+            onSample((int) mLastLatency);
+            finish(uncovered, true);
+        } else if (mCacheValid) {
+            // The sensor changed within the window, keep the cache current
+            mCachedAllowed = uncovered;
+        }
+    }
+
+    @Override
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {}
+
+    private void finish(boolean allowed, boolean sampled) {
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mChecking = false;
+
+        if (sampled && mCacheWindow > 0) {
+            // The wakelock stays held until the window ends
+            mCacheValid = true;
+            mCachedAllowed = allowed;
+            mSampleTime = SystemClock.elapsedRealtime();
+            mHandler.removeCallbacks(mExpireRunnable);
+            mHandler.postDelayed(mExpireRunnable, mCacheWindow);
+        } else {
+            unregister();
+            mWakeLock.release();
+        }
+
+        for (int i = 0; i < mPendingCount; i++) {
+            mCallback.onProximityResult(mPending[i], allowed);
+        }
+        mPendingCount = 0;
+    }
+
+    private void onSample(int latency) {
+        if (mEwma < 0) {
+            mEwma = latency;
+        } else {
+            mEwma += (latency - mEwma) >> EWMA_SHIFT;
+        }
+
+        mHistory[mHistoryNext] = latency;
+        mHistoryNext = (mHistoryNext + 1) % HISTORY_SIZE;
+        if (mHistoryCount < HISTORY_SIZE) {
+            mHistoryCount++;
+        }
+        System.arraycopy(mHistory, 0, mSorted, 0, mHistoryCount);
+        Arrays.sort(mSorted, 0, mHistoryCount);
+        mP99 = percentile(mSorted, mHistoryCount, 99);
+
+        if (mMinTimeout < mMaxTimeout && mHistoryCount >= MIN_SAMPLES) {
+            // Half the p99 as headroom for the tail beyond it
+            long timeout = Math.max(mP99 + mP99 / 2, mEwma * 2);
+            mTimeout = (int) Math.max(mMinTimeout, Math.min(mMaxTimeout, timeout));
+        }
+    }
+
+    /**
+     * Linearly interpolates between the closest ranks of the first count
+     * sorted values, so the p99 of 128 samples isn't simply their maximum.
+     */
+    static int percentile(int[] sorted, int count, int percent) {
+        int position = (count - 1) * percent;
+        int lower = position / 100;
+        int fraction = position % 100;
+        if (fraction == 0) {
+            return sorted[lower];
+        }
+        return sorted[lower] + (sorted[lower + 1] - sorted[lower]) * fraction / 100;
+    }
+
+    private void unregister() {
+        if (mRegistered) {
+            mSensorManager.unregisterListener(this);
+            mRegistered = false;
+        }
+    }
+}
@@ -0,0 +1,41 @@
+#
+# Copyright (C) 2016 The CyanogenMod Project
+#
+# Licensed under the Apache License, Version 2.0 (the "License");
+# you may not use this file except in compliance with the License.
+# You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+# Unless required by applicable law or agreed to in writing, software
+# distributed under the License is distributed on an "AS IS" BASIS,
+# WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+# See the License for the specific language governing permissions and
+# limitations under the License.
+#
+
+
+# Instrumentation tests for the keyhandler helpers, run with:
+#   adb shell am instrument -w \
+#       com.cyanogenmod.keyhandler.tests/android.test.InstrumentationTestRunner
+#
+# The keyhandler is a jar loaded into system_server, so its sources are
+# built into this package instead.
+
+LOCAL_PATH := $(call my-dir)
+include $(CLEAR_VARS)
+
+LOCAL_PACKAGE_NAME := KeyHandlerTests
+LOCAL_MODULE_CLASS := APPS
+LOCAL_MODULE_TAGS := tests
+LOCAL_CERTIFICATE := platform
+
+LOCAL_SRC_FILES := $(call all-java-files-under, src) \
+    $(call all-java-files-under, ../src)
+
+LOCAL_JAVA_LIBRARIES := android.test.runner
+LOCAL_STATIC_JAVA_LIBRARIES := org.cyanogenmod.platform.internal
+
+include $(LOCAL_PATH)/../../gestures/registry.mk
+
+include $(BUILD_PACKAGE)
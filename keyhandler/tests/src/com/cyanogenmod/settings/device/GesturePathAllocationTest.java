@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.settings.device;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.res.Resources;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEventListener;
+import android.media.AudioAttributes;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.Vibrator;
+import android.test.AndroidTestCase;
+import android.view.KeyEvent;
+
+import java.lang.reflect.Constructor;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the allocations of the steady-state gesture path by injecting
+ * gesture key events into a real KeyHandler: recording and queueing on the
+ * input thread, then the proximity check, haptic feedback and the action
+ * itself on the worker thread.
+ *
+ * The sensor, vibrator and camera broadcast are faked and media button
+ * events are swallowed, so the test doesn't act on the device. For the
+ * same reason the flashlight gesture isn't injected. Each media gesture
+ * allocates the two KeyEvents it hands to the media session, nothing else
+ * is expected to allocate.
+ */
+public class GesturePathAllocationTest extends AndroidTestCase {
+    private static final int WARMUP = 100;
+    private static final int ITERATIONS = 1000;
+
+    // Generous bound on the proximity check plus dispatch
+    private static final long ACTION_TIMEOUT = 2000;
+    private static final int MEDIA_GESTURE_ALLOCATIONS = 2;
+
+    private KeyEvent[] mEvents;
+    private boolean[] mMediaEvents;
+    private FakeContext mFakeContext;
+    private TestKeyHandler mKeyHandler;
+    private Handler mWorkerHandler;
+
+    // Released once per completed gesture action
+    private final Semaphore mActions = new Semaphore(0);
+    // Released by the runnables posted to the worker thread
+    private final Semaphore mWorkerSync = new Semaphore(0);
+    private int mInputAllocations;
+    private int mWorkerAllocations;
+
+    private final Runnable mResetWorkerCount = new Runnable() {
+        @Override
+        public void run() {
+            Debug.resetThreadAllocCount();
+            mWorkerSync.release();
+        }
+    };
+
+    private final Runnable mReadWorkerCount = new Runnable() {
+        @Override
+        public void run() {
+            mWorkerAllocations = Debug.getThreadAllocCount();
+            mWorkerSync.release();
+        }
+    };
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        int count = 0;
+        KeyEvent[] events = new KeyEvent[GestureRegistry.KEY_GESTURES.length];
+        boolean[] media = new boolean[events.length];
+        long now = SystemClock.uptimeMillis();
+        for (int gesture : GestureRegistry.KEY_GESTURES) {
+            int action = GestureRegistry.DEFAULT_ACTIONS[gesture];
+            if (action != GestureRegistry.ACTION_CAMERA && !isMediaAction(action)) {
+                continue;
+            }
+            // Only the up event is acted on
+            events[count] = new KeyEvent(now, now, KeyEvent.ACTION_UP,
+                    KeyEvent.KEYCODE_UNKNOWN, 0, 0, 0, GestureRegistry.SCANCODES[gesture]);
+            media[count] = isMediaAction(action);
+            count++;
+        }
+        // Distinct neighbours, so the queue doesn't coalesce them
+        assertTrue("not enough gestures to alternate", count >= 2);
+        mEvents = new KeyEvent[count];
+        mMediaEvents = new boolean[count];
+        System.arraycopy(events, 0, mEvents, 0, count);
+        System.arraycopy(media, 0, mMediaEvents, 0, count);
+
+        mFakeContext = new FakeContext(getContext());
+        mKeyHandler = new TestKeyHandler(mFakeContext);
+        mWorkerHandler = new Handler(mKeyHandler.getWorkerLooper());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mKeyHandler.getWorkerLooper().quitSafely();
+        super.tearDown();
+    }
+
+    public void testSteadyStateGesturePathAllocations() throws Exception {
+        assertEquals("gestures not handled", 0, runGestures(WARMUP));
+        int vibrations = mFakeContext.mVibrator.mVibrations;
+
+        int expected = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            if (mMediaEvents[i % mEvents.length]) {
+                expected += MEDIA_GESTURE_ALLOCATIONS;
+            }
+        }
+
+        int failures;
+        Debug.startAllocCounting();
+        try {
+            runOnWorker(mResetWorkerCount);
+            failures = runGestures(ITERATIONS);
+            runOnWorker(mReadWorkerCount);
+        } finally {
+            Debug.stopAllocCounting();
+        }
+        assertEquals("gestures not handled", 0, failures);
+        assertEquals("gestures without haptic feedback", ITERATIONS,
+                mFakeContext.mVibrator.mVibrations - vibrations);
+        assertEquals("allocations on the input path", 0, mInputAllocations);
+        assertEquals("allocations on the worker thread", expected, mWorkerAllocations);
+    }
+
+    // Injects the gestures one at a time and waits for each action. Only
+    // handleKeyEvent() is counted on this thread, waiting may allocate.
+    // Returns the number of gestures whose action didn't run.
+    private int runGestures(int count) throws InterruptedException {
+        int failures = 0;
+        mInputAllocations = 0;
+        for (int i = 0; i < count; i++) {
+            KeyEvent event = mEvents[i % mEvents.length];
+            int before = Debug.getThreadAllocCount();
+            mKeyHandler.handleKeyEvent(event);
+            mInputAllocations += Debug.getThreadAllocCount() - before;
+            if (!mActions.tryAcquire(ACTION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    // Runs the runnable on the worker thread, after anything queued there
+    private void runOnWorker(Runnable runnable) throws InterruptedException {
+        mWorkerHandler.post(runnable);
+        assertTrue("worker thread stuck",
+                mWorkerSync.tryAcquire(ACTION_TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    private static boolean isMediaAction(int action) {
+        return action == GestureRegistry.ACTION_PLAY_PAUSE
+                || action == GestureRegistry.ACTION_PREVIOUS_TRACK
+                || action == GestureRegistry.ACTION_NEXT_TRACK;
+    }
+
+    private class TestKeyHandler extends KeyHandler {
+        TestKeyHandler(Context context) {
+            super(context, false);
+        }
+
+        @Override
+        void sendMediaButtonEvent(KeyEvent event) {
+            if (event.getAction() == KeyEvent.ACTION_UP) {
+                mActions.release();
+            }
+        }
+    }
+
+    // Hands out the fakes and enables the proximity check
+    private class FakeContext extends ContextWrapper {
+        final FakeVibrator mVibrator = new FakeVibrator();
+        private final FakeSensorManager mSensorManager;
+        private final Resources mResources;
+
+        FakeContext(Context base) throws Exception {
+            super(base);
+            mSensorManager = new FakeSensorManager(
+                    (SensorManager) base.getSystemService(Context.SENSOR_SERVICE));
+            mResources = new FakeResources(base.getResources());
+        }
+
+        @Override
+        public Resources getResources() {
+            return mResources;
+        }
+
+        @Override
+        public Object getSystemService(String name) {
+            if (Context.VIBRATOR_SERVICE.equals(name)) {
+                return mVibrator;
+            }
+            if (Context.SENSOR_SERVICE.equals(name)) {
+                return mSensorManager;
+            }
+            return super.getSystemService(name);
+        }
+
+        @Override
+        public void sendOrderedBroadcast(Intent intent, String receiverPermission,
+                BroadcastReceiver resultReceiver, Handler scheduler, int initialCode,
+                String initialData, Bundle initialExtras) {
+            mActions.release();
+        }
+    }
+
+    private static class FakeResources extends Resources {
+        FakeResources(Resources base) {
+            super(base.getAssets(), base.getDisplayMetrics(), base.getConfiguration());
+        }
+
+        @Override
+        public boolean getBoolean(int id) {
+            if (id == org.cyanogenmod.platform.internal.R.bool.config_proximityCheckOnWake
+                    || id == org.cyanogenmod.platform.internal.R.bool
+                            .config_proximityCheckOnWakeEnabledByDefault) {
+                return true;
+            }
+            return super.getBoolean(id);
+        }
+    }
+
+    private static class FakeVibrator extends Vibrator {
+        // Written on the worker thread, read once the actions are done
+        int mVibrations;
+
+        @Override
+        public boolean hasVibrator() {
+            return true;
+        }
+
+        @Override
+        public void vibrate(int uid, String opPkg, long milliseconds,
+                AudioAttributes attributes) {
+            mVibrations++;
+        }
+
+        @Override
+        public void vibrate(int uid, String opPkg, long[] pattern, int repeat,
+                AudioAttributes attributes) {
+            mVibrations++;
+        }
+
+        @Override
+        public void cancel() {}
+    }
+
+    // Lists the real sensors and answers each registration with an
+    // uncovered sample on the listener's handler
+    private static class FakeSensorManager extends SensorManager {
+        private final SensorManager mSensorManager;
+        private final SensorEvent mUncovered;
+        private SensorEventListener mListener;
+
+        private final Runnable mSample = new Runnable() {
+            @Override
+            public void run() {
+                if (mListener != null) {
+                    mListener.onSensorChanged(mUncovered);
+                }
+            }
+        };
+
+        FakeSensorManager(SensorManager sensorManager) throws Exception {
+            mSensorManager = sensorManager;
+            Sensor sensor = sensorManager.getDefaultSensor(Sensor.TYPE_PROXIMITY);
+            // SensorEvent has no public constructor
+            Constructor<SensorEvent> constructor =
+                    SensorEvent.class.getDeclaredConstructor(int.class);
+            constructor.setAccessible(true);
+            mUncovered = constructor.newInstance(1);
+            mUncovered.sensor = sensor;
+            mUncovered.values[0] = sensor != null ? sensor.getMaximumRange() : 0;
+        }
+
+        @Override
+        protected List<Sensor> getFullSensorList() {
+            return mSensorManager.getSensorList(Sensor.TYPE_ALL);
+        }
+
+        @Override
+        protected boolean registerListenerImpl(SensorEventListener listener, Sensor sensor,
+                int delayUs, Handler handler, int maxReportLatencyUs, int reservedFlags) {
+            mListener = listener;
+            mUncovered.timestamp = SystemClock.elapsedRealtimeNanos();
+            handler.post(mSample);
+            return true;
+        }
+
+        @Override
+        protected void unregisterListenerImpl(SensorEventListener listener, Sensor sensor) {
+            mListener = null;
+        }
+
+        @Override
+        protected boolean flushImpl(SensorEventListener listener) {
+            return false;
+        }
+
+        @Override
+        protected boolean requestTriggerSensorImpl(TriggerEventListener listener,
+                Sensor sensor) {
+            return false;
+        }
+
+        @Override
+        protected boolean cancelTriggerSensorImpl(TriggerEventListener listener, Sensor sensor,
+                boolean disable) {
+            return false;
+        }
+
+        @Override
+        protected boolean initDataInjectionImpl(boolean enable) {
+            return false;
+        }
+
+        @Override
+        protected boolean injectSensorDataImpl(Sensor sensor, float[] values, int accuracy,
+                long timestamp) {
+            return false;
+        }
+    }
+}
@@ -30,6 +30,8 @@
 
 #define CONTROL_PATH "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/gesture_list"
 #define CONTROL_EN_PATH "/sys/devices/soc.0/f9924000.i2c/i2c-2/2-004a/en_gesture"
+/* Shared with the gesture settings in ConfigPanel */
+#define CONTROL_LOCK_PATH "/data/system/touchscreen_gesture.lock"
 #define ON_BITMASK 0x01
 #define OFF_BITMASK 0x02
 #define NODE_MAX 128
@@ -115,19 +117,60 @@ static void disable_gestures_if_all_off()
     sysfs_write(CONTROL_EN_PATH, "0");
 }
 
+/*
+ * Serializes the gesture_list read/modify/write against the gesture
+ * settings, which take the same lock. A dedicated file is locked since
+ * closing any descriptor of a file drops the process' POSIX locks on it.
+ */
+static int lock_gestures()
+{
+    char buf[80];
+    struct flock lock;
+    int fd = open(CONTROL_LOCK_PATH, O_RDWR | O_CREAT | O_CLOEXEC, 0600);
+
+    if (fd < 0) {
+        strerror_r(errno, buf, sizeof(buf));
+        ALOGE("Error opening %s: %s\n", CONTROL_LOCK_PATH, buf);
+        return -1;
+    }
+
+    memset(&lock, 0, sizeof(lock));
+    lock.l_type = F_WRLCK;
+    lock.l_whence = SEEK_SET;
+    if (TEMP_FAILURE_RETRY(fcntl(fd, F_SETLKW, &lock)) < 0) {
+        strerror_r(errno, buf, sizeof(buf));
+        ALOGE("Error locking %s: %s\n", CONTROL_LOCK_PATH, buf);
+        close(fd);
+        return -1;
+    }
+
+    return fd;
+}
+
+static void unlock_gestures(int fd)
+{
+    /* Closing the descriptor releases the lock */
+    if (fd >= 0)
+        close(fd);
+}
+
 void set_device_specific_feature(struct power_module *module __unused, feature_t feature, int state)
 {
     char tmp_str[NODE_MAX];
+    int lock_fd;
+
     if (feature == POWER_FEATURE_DOUBLE_TAP_TO_WAKE) {
+        /* Still apply the change if locking fails, just unserialized */
+        lock_fd = lock_gestures();
         if (state) {
             enable_gestures();
         }
         snprintf(tmp_str, NODE_MAX, "TAP %d;", state ? ON_BITMASK : OFF_BITMASK);
         sysfs_write(CONTROL_PATH, tmp_str);
         if (!state) {
-            /* TODO this seperated node may have a race condition with the gestures settings */
             disable_gestures_if_all_off();
         }
+        unlock_gestures(lock_fd);
     }
 }
 
@@ -170,6 +170,22 @@ done
 # change GPU initial power level from 305MHz(level 4) to 180MHz(level 5) for power savings
 echo 5 > /sys/class/kgsl/kgsl-3d0/default_pwrlevel
 
+# Let ConfigPanel apply the [files] section of the perf profiles.
+# The cpu4 nodes are recreated on hotplug, ueventd.qcom.rc covers those.
+for node in /sys/devices/system/cpu/cpu4/cpufreq/interactive/above_hispeed_delay \
+            /sys/devices/system/cpu/cpu4/cpufreq/interactive/go_hispeed_load \
+            /sys/devices/system/cpu/cpu4/cpufreq/interactive/hispeed_freq \
+            /sys/devices/system/cpu/cpu4/cpufreq/interactive/min_sample_time \
+            /sys/devices/system/cpu/cpu4/cpufreq/interactive/target_loads \
+            /sys/devices/system/cpu/cpu4/core_ctl/min_cpus \
+            /proc/sys/kernel/sched_downmigrate \
+            /proc/sys/kernel/sched_upmigrate \
+            /proc/sys/kernel/sched_init_task_load
+do
+    chown system.system $node
+    chmod 0664 $node
+done
+
 rm /data/system/perfd/default_values
 start perfd
 